@@ -0,0 +1,260 @@
+import java.util.Arrays;
+
+/**
+ * Compressed-sparse-row (CSR) storage for the road graph. Vertices are numbered densely from
+ * 0 to size() - 1; the OSM id of a vertex is only used as a lookup key into that numbering.
+ * Coordinates are kept in parallel primitive arrays, and the neighbours of vertex v are
+ * targets[offsets[v]] through targets[offsets[v + 1] - 1]. The length of the road segment
+ * to targets[e] is weights[e], computed once when the graph is built, so a search relaxes an
+ * edge with a single array read. Each edge also records its Highway type code in highways[e]
+ * and its posted speed limit in speeds[e], in km/h as an unsigned byte with 0 for unknown;
+ * RoutingProfile derives filters and travel times from these two bytes.
+ *
+ * Loaded graphs are numbered along a Hilbert curve (see hilbertOrdered), so vertices that are
+ * close on the map are close in every array. A search frontier or a nearest-vertex query then
+ * reads a few neighbouring cache lines rather than scattered ones.
+ *
+ * Instances are immutable once built, so they can be shared freely between request threads.
+ */
+class CompactGraph {
+    final long[] ids;
+    final double[] lons;
+    final double[] lats;
+    final int[] offsets;
+    final int[] targets;
+    final double[] weights;
+    final byte[] highways;
+    final byte[] speeds;
+    private final IdIndex index;
+
+    /** A graph whose roads are all UNCLASSIFIED with no known speed limit. */
+    CompactGraph(long[] ids, double[] lons, double[] lats, int[] offsets, int[] targets) {
+        this(ids, lons, lats, offsets, targets, unclassified(targets.length),
+                new byte[targets.length]);
+    }
+
+    CompactGraph(long[] ids, double[] lons, double[] lats, int[] offsets, int[] targets,
+                 byte[] highways, byte[] speeds) {
+        this.ids = ids;
+        this.lons = lons;
+        this.lats = lats;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.highways = highways;
+        this.speeds = speeds;
+        this.weights = new double[targets.length];
+        for (int v = 0; v < ids.length; v++) {
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                weights[e] = distance(v, targets[e]);
+            }
+        }
+        this.index = new IdIndex(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            index.put(ids[i], i);
+        }
+    }
+
+    private static byte[] unclassified(int edges) {
+        byte[] highways = new byte[edges];
+        Arrays.fill(highways, Highway.UNCLASSIFIED.code());
+        return highways;
+    }
+
+    /**
+     * Returns the subgraph made of the vertices of component c. Components are closed under
+     * adjacency, so every edge of a kept vertex is kept too. Vertices keep their relative
+     * order.
+     */
+    CompactGraph component(ConnectedComponents components, int c) {
+        int n = ids.length;
+        int[] renumber = new int[n];
+        int kept = 0;
+        int edges = 0;
+        for (int v = 0; v < n; v++) {
+            if (components.of(v) == c) {
+                renumber[v] = kept++;
+                edges += offsets[v + 1] - offsets[v];
+            } else {
+                renumber[v] = -1;
+            }
+        }
+        long[] keptIds = new long[kept];
+        double[] keptLons = new double[kept];
+        double[] keptLats = new double[kept];
+        int[] keptOffsets = new int[kept + 1];
+        int[] keptTargets = new int[edges];
+        byte[] keptHighways = new byte[edges];
+        byte[] keptSpeeds = new byte[edges];
+        int e2 = 0;
+        for (int v = 0; v < n; v++) {
+            int i = renumber[v];
+            if (i < 0) {
+                continue;
+            }
+            keptIds[i] = ids[v];
+            keptLons[i] = lons[v];
+            keptLats[i] = lats[v];
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                keptHighways[e2] = highways[e];
+                keptSpeeds[e2] = speeds[e];
+                keptTargets[e2++] = renumber[targets[e]];
+            }
+            keptOffsets[i + 1] = e2;
+        }
+        return new CompactGraph(keptIds, keptLons, keptLats, keptOffsets, keptTargets,
+                keptHighways, keptSpeeds);
+    }
+
+    /**
+     * Returns a copy of this graph renumbered so that vertex i of the copy is vertex order[i]
+     * of this one. Each vertex keeps its neighbours in the same order.
+     */
+    CompactGraph permute(int[] order) {
+        int n = ids.length;
+        int[] position = new int[n];
+        for (int i = 0; i < n; i++) {
+            position[order[i]] = i;
+        }
+        long[] newIds = new long[n];
+        double[] newLons = new double[n];
+        double[] newLats = new double[n];
+        int[] newOffsets = new int[n + 1];
+        int[] newTargets = new int[targets.length];
+        byte[] newHighways = new byte[targets.length];
+        byte[] newSpeeds = new byte[targets.length];
+        for (int i = 0; i < n; i++) {
+            int v = order[i];
+            newIds[i] = ids[v];
+            newLons[i] = lons[v];
+            newLats[i] = lats[v];
+            int e2 = newOffsets[i];
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                newHighways[e2] = highways[e];
+                newSpeeds[e2] = speeds[e];
+                newTargets[e2++] = position[targets[e]];
+            }
+            newOffsets[i + 1] = e2;
+        }
+        return new CompactGraph(newIds, newLons, newLats, newOffsets, newTargets, newHighways,
+                newSpeeds);
+    }
+
+    /**
+     * Returns a copy of this graph with vertices ordered along a Hilbert curve through a
+     * 65536 x 65536 grid over the graph's bounding box. Unlike Z-order, the Hilbert curve
+     * never jumps, so consecutive vertices are always near each other on the map. Vertices
+     * in the same grid cell keep their current relative order.
+     */
+    CompactGraph hilbertOrdered() {
+        int n = ids.length;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minLon = Math.min(minLon, lons[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+        }
+        double lonScale = maxLon > minLon ? HILBERT_MAX / (maxLon - minLon) : 0;
+        double latScale = maxLat > minLat ? HILBERT_MAX / (maxLat - minLat) : 0;
+        /* The curve index takes 32 bits, so it sorts above a 31-bit vertex index. */
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            int x = (int) ((lons[i] - minLon) * lonScale);
+            int y = (int) ((lats[i] - minLat) * latScale);
+            keys[i] = (hilbertIndex(x, y) << 31) | i;
+        }
+        Arrays.parallelSort(keys);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = (int) (keys[i] & Integer.MAX_VALUE);
+        }
+        return permute(order);
+    }
+
+    private static final int HILBERT_MAX = 0xFFFF;
+
+    /** Position of grid cell (x, y) along the Hilbert curve, for 0 <= x, y <= HILBERT_MAX. */
+    static long hilbertIndex(int x, int y) {
+        long d = 0;
+        for (int s = (HILBERT_MAX + 1) >>> 1; s > 0; s >>>= 1) {
+            int rx = (x & s) != 0 ? 1 : 0;
+            int ry = (y & s) != 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            /* Rotate the quadrant so the sub-curve inside it has the standard orientation. */
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = HILBERT_MAX - x;
+                    y = HILBERT_MAX - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /** Number of vertices. */
+    int size() {
+        return ids.length;
+    }
+
+    /** Number of directed adjacency entries; each road segment is stored once per direction. */
+    int edgeCount() {
+        return targets.length;
+    }
+
+    /** The vertex whose adjacency list holds entry e, found by binary search over offsets. */
+    int edgeSource(int e) {
+        int lo = 0;
+        int hi = ids.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= e) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /** Returns the dense index of the vertex with the given OSM id, or -1 if there is none. */
+    int indexOf(long id) {
+        return index.get(id);
+    }
+
+    /**
+     * A hash of the vertex numbering, coordinates and adjacency structure. Derived data files such as the
+     * contraction hierarchy record it so that they are never applied to a different graph.
+     */
+    long fingerprint() {
+        long h = 0xcbf29ce484222325L;
+        h = (h ^ ids.length) * 0x100000001b3L;
+        h = (h ^ targets.length) * 0x100000001b3L;
+        for (long id : ids) {
+            h = (h ^ id) * 0x100000001b3L;
+        }
+        for (int i = 0; i < ids.length; i++) {
+            h = (h ^ Double.doubleToLongBits(lons[i])) * 0x100000001b3L;
+            h = (h ^ Double.doubleToLongBits(lats[i])) * 0x100000001b3L;
+        }
+        for (int offset : offsets) {
+            h = (h ^ offset) * 0x100000001b3L;
+        }
+        for (int target : targets) {
+            h = (h ^ target) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /** Euclidean distance in degrees between vertices v and w, given as dense indices. */
+    double distance(int v, int w) {
+        double dLon = lons[v] - lons[w];
+        double dLat = lats[v] - lats[w];
+        return Math.sqrt(dLon * dLon + dLat * dLat);
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.Arrays;
+
+/**
+ * Connected-component labels for the vertices of a CompactGraph. Roads are stored in both
+ * directions, so two vertices are connected by a route exactly when they have the same label,
+ * which lets Router turn down a request between two road islands in constant time instead of
+ * exhausting one side of the graph first.
+ *
+ * Components are numbered by decreasing size, so component 0 is always the largest.
+ */
+class ConnectedComponents {
+    /** component[v] is the label of the component vertex v belongs to. */
+    private final int[] component;
+    /** sizes[c] is the number of vertices in component c; non-increasing in c. */
+    private final int[] sizes;
+
+    /** Labels the components of graph with a breadth-first search from every unlabelled vertex. */
+    ConnectedComponents(CompactGraph graph) {
+        int n = graph.size();
+        int[] label = new int[n];
+        Arrays.fill(label, -1);
+        int[] queue = new int[n];
+        int[] found = new int[16];
+        int count = 0;
+        for (int root = 0; root < n; root++) {
+            if (label[root] >= 0) {
+                continue;
+            }
+            int head = 0;
+            int tail = 0;
+            label[root] = count;
+            queue[tail++] = root;
+            while (head < tail) {
+                int v = queue[head++];
+                for (int e = graph.offsets[v]; e < graph.offsets[v + 1]; e++) {
+                    int w = graph.targets[e];
+                    if (label[w] < 0) {
+                        label[w] = count;
+                        queue[tail++] = w;
+                    }
+                }
+            }
+            if (count == found.length) {
+                found = Arrays.copyOf(found, 2 * count);
+            }
+            found[count++] = tail;
+        }
+
+        /* Renumber by decreasing size; equal sizes keep the order they were found in. */
+        long[] keys = new long[count];
+        for (int c = 0; c < count; c++) {
+            keys[c] = ((long) (n - found[c]) << 32) | c;
+        }
+        Arrays.sort(keys);
+        int[] rename = new int[count];
+        sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            int c = (int) keys[i];
+            rename[c] = i;
+            sizes[i] = found[c];
+        }
+        for (int v = 0; v < n; v++) {
+            label[v] = rename[label[v]];
+        }
+        component = label;
+    }
+
+    /** Number of components. */
+    int count() {
+        return sizes.length;
+    }
+
+    /** The component of vertex v. */
+    int of(int v) {
+        return component[v];
+    }
+
+    /** Number of vertices in component c. */
+    int size(int c) {
+        return sizes[c];
+    }
+
+    /** Whether a route exists between vertices v and w. */
+    boolean connected(int v, int w) {
+        return component[v] == component[w];
+    }
+
+    /** The vertices of component c, in increasing index order. */
+    int[] vertices(int c) {
+        int[] result = new int[sizes[c]];
+        int i = 0;
+        for (int v = 0; v < component.length; v++) {
+            if (component[v] == c) {
+                result[i++] = v;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,616 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.stream.IntStream;
+
+/**
+ * Contraction Hierarchy over a CompactGraph, used by Router for fast exact shortest paths.
+ *
+ * Preprocessing contracts the vertices one at a time in order of importance. When a vertex is
+ * contracted, a shortcut is added between each pair of its remaining neighbours unless a
+ * witness path that avoids it is at least as short. Each vertex keeps only its "upward"
+ * edges, the ones to neighbours contracted after it. A query is then a bidirectional
+ * Dijkstra that only climbs upward from both ends, followed by unpacking the shortcuts on
+ * the found path back into original road segments.
+ *
+ * The hierarchy shares the dense vertex numbering of the graph it was built for, and is
+ * persisted next to the graph snapshot by GraphCompiler. File layout (big-endian):
+ * <pre>
+ *   int MAGIC, int VERSION, long graph fingerprint, int n, int m
+ *   int[n] rank, int[n + 1] upOffsets, int[m] upTargets, double[m] upWeights, int[m] upMiddle
+ * </pre>
+ */
+class ContractionHierarchy {
+    static final int MAGIC = 0x424D4348; // "BMCH"
+    static final int VERSION = 1;
+    /** Witness searches give up after settling this many vertices and add the shortcut. */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+    /** Limits of the cheaper witness searches that estimate a vertex's priority. */
+    private static final int SIMULATION_SETTLE_LIMIT = 20;
+    private static final int SIMULATION_HOP_LIMIT = 3;
+
+    final CompactGraph graph;
+    /** rank[v] is the position at which v was contracted. */
+    final int[] rank;
+    final int[] upOffsets;
+    final int[] upTargets;
+    final double[] upWeights;
+    /** The contracted vertex a shortcut bypasses, or -1 for an original road segment. */
+    final int[] upMiddle;
+
+    private ContractionHierarchy(CompactGraph graph, int[] rank, int[] upOffsets,
+                                 int[] upTargets, double[] upWeights, int[] upMiddle) {
+        this.graph = graph;
+        this.rank = rank;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.upWeights = upWeights;
+        this.upMiddle = upMiddle;
+    }
+
+    /** Runs the full preprocessing for graph. Intended for the offline compile step. */
+    static ContractionHierarchy build(CompactGraph graph) {
+        return new Builder(graph).build();
+    }
+
+    /** Number of upward edges, original segments and shortcuts together. */
+    int edgeCount() {
+        return upTargets.length;
+    }
+
+    /**
+     * Upward bidirectional Dijkstra between s and t. Parent pointers are left in the two
+     * contexts, which must be reset and bound to this hierarchy's graph.
+     * @return The highest-ranked vertex on the shortest path, or -1 if t is unreachable.
+     */
+    int query(SearchContext forward, SearchContext backward, int s, int t) {
+        forward.update(s, 0.0, -1);
+        forward.heap.push(s, 0.0);
+        backward.update(t, 0.0, -1);
+        backward.heap.push(t, 0.0);
+
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        boolean forwardStep = true;
+        while (true) {
+            boolean forwardDone = forward.heap.isEmpty() || forward.heap.peekKey() >= best;
+            boolean backwardDone = backward.heap.isEmpty() || backward.heap.peekKey() >= best;
+            if (forwardDone && backwardDone) {
+                return meet;
+            }
+            if (forwardDone || backwardDone) {
+                forwardStep = backwardDone;
+            }
+            SearchContext side = forwardStep ? forward : backward;
+            SearchContext other = forwardStep ? backward : forward;
+            forwardStep = !forwardStep;
+
+            int v = side.heap.poll();
+            side.settled[v] = true;
+            double through = side.dist[v] + other.dist[v];
+            if (through < best) {
+                best = through;
+                meet = v;
+            }
+            if (stalled(side, v)) {
+                continue;
+            }
+            for (int e = upOffsets[v]; e < upOffsets[v + 1]; e++) {
+                int w = upTargets[e];
+                double d = side.dist[v] + upWeights[e];
+                if (d < side.dist[w]) {
+                    side.update(w, d, v);
+                    side.heap.push(w, d);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether a shorter path to v comes down from one of its higher neighbours. Then v is
+     * not on a shortest upward path and need not be expanded. Roads run both ways, so v's
+     * upward edges are also the edges coming down into it.
+     */
+    private boolean stalled(SearchContext side, int v) {
+        for (int e = upOffsets[v]; e < upOffsets[v + 1]; e++) {
+            if (side.dist[upTargets[e]] + upWeights[e] < side.dist[v]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Many-to-many shortest-path distances with the bucket method. One upward search from
+     * every target leaves (target, distance) entries in a bucket at each vertex it reaches;
+     * one upward search from every source then scans the buckets of the vertices it reaches,
+     * since every shortest path meets at its highest-ranked vertex. The source searches only
+     * read the buckets, so they run in parallel.
+     * @return distances[i][j] from sources[i] to targets[j], infinite when unreachable.
+     */
+    double[][] distanceMatrix(int[] sources, int[] targets) {
+        int n = rank.length;
+        /* Buckets as linked lists threaded through parallel arrays. */
+        final int[] head = new int[n];
+        Arrays.fill(head, -1);
+        int[] next = new int[64];
+        int[] column = new int[64];
+        double[] bucketDist = new double[64];
+        int entries = 0;
+
+        SearchContext ctx = Router.context(graph);
+        for (int j = 0; j < targets.length; j++) {
+            ctx.reset();
+            upwardSearch(ctx, targets[j]);
+            for (int i = 0; i < ctx.touchedCount(); i++) {
+                int v = ctx.touched(i);
+                if (entries == next.length) {
+                    next = Arrays.copyOf(next, entries * 2);
+                    column = Arrays.copyOf(column, entries * 2);
+                    bucketDist = Arrays.copyOf(bucketDist, entries * 2);
+                }
+                next[entries] = head[v];
+                column[entries] = j;
+                bucketDist[entries] = ctx.dist[v];
+                head[v] = entries++;
+            }
+        }
+
+        final int[] bucketNext = next;
+        final int[] bucketColumn = column;
+        final double[] bucketDistance = bucketDist;
+        final double[][] result = new double[sources.length][targets.length];
+        IntStream.range(0, sources.length).parallel().forEach(i -> {
+            double[] row = result[i];
+            Arrays.fill(row, Double.POSITIVE_INFINITY);
+            SearchContext forward = Router.context(graph);
+            forward.reset();
+            upwardSearch(forward, sources[i]);
+            for (int k = 0; k < forward.touchedCount(); k++) {
+                int v = forward.touched(k);
+                double d = forward.dist[v];
+                for (int b = head[v]; b >= 0; b = bucketNext[b]) {
+                    double through = d + bucketDistance[b];
+                    if (through < row[bucketColumn[b]]) {
+                        row[bucketColumn[b]] = through;
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    /** Dijkstra from s over upward edges only, settling its whole search space. */
+    private void upwardSearch(SearchContext ctx, int s) {
+        ctx.update(s, 0.0, -1);
+        ctx.heap.push(s, 0.0);
+        while (!ctx.heap.isEmpty()) {
+            int v = ctx.heap.poll();
+            for (int e = upOffsets[v]; e < upOffsets[v + 1]; e++) {
+                int w = upTargets[e];
+                double d = ctx.dist[v] + upWeights[e];
+                if (d < ctx.dist[w]) {
+                    ctx.update(w, d, v);
+                    ctx.heap.push(w, d);
+                }
+            }
+        }
+    }
+
+    /**
+     * Expands the upward search trees joined at meet into the full list of OSM node ids from
+     * s to t, unpacking every shortcut into the road segments it stands for.
+     */
+    LinkedList<Long> unpackPath(SearchContext forward, SearchContext backward, int meet) {
+        LinkedList<Long> path = new LinkedList<>();
+        int s = meet;
+        while (forward.parent[s] >= 0) {
+            s = forward.parent[s];
+        }
+        path.add(graph.ids[s]);
+
+        /* The forward tree runs from meet back to s, so collect it before unpacking. */
+        int[] chain = new int[16];
+        int length = 0;
+        for (int v = meet; v >= 0; v = forward.parent[v]) {
+            if (length == chain.length) {
+                chain = Arrays.copyOf(chain, length * 2);
+            }
+            chain[length++] = v;
+        }
+        for (int i = length - 1; i > 0; i--) {
+            unpackEdge(chain[i], chain[i - 1], path);
+        }
+        for (int v = meet; backward.parent[v] >= 0; v = backward.parent[v]) {
+            unpackEdge(v, backward.parent[v], path);
+        }
+        return path;
+    }
+
+    /** Appends the vertices after u on the original road path u..w to path. */
+    private void unpackEdge(int u, int w, LinkedList<Long> path) {
+        int[] stack = new int[16];
+        int size = 0;
+        stack[size++] = u;
+        stack[size++] = w;
+        while (size > 0) {
+            int y = stack[--size];
+            int x = stack[--size];
+            int m = middle(x, y);
+            if (m < 0) {
+                path.add(graph.ids[y]);
+                continue;
+            }
+            if (size + 4 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            /* Push m..y first so that x..m is unpacked first. */
+            stack[size++] = m;
+            stack[size++] = y;
+            stack[size++] = x;
+            stack[size++] = m;
+        }
+    }
+
+    /** The middle vertex of the upward edge between x and y. */
+    private int middle(int x, int y) {
+        int low = rank[x] < rank[y] ? x : y;
+        int high = low == x ? y : x;
+        for (int e = upOffsets[low]; e < upOffsets[low + 1]; e++) {
+            if (upTargets[e] == high) {
+                return upMiddle[e];
+            }
+        }
+        throw new IllegalStateException("No hierarchy edge between " + graph.ids[x]
+                + " and " + graph.ids[y] + ".");
+    }
+
+    /** Writes this hierarchy to path, replacing any existing file. */
+    void write(String path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(path), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(graph.fingerprint());
+            out.writeInt(rank.length);
+            out.writeInt(upTargets.length);
+            for (int r : rank) {
+                out.writeInt(r);
+            }
+            for (int offset : upOffsets) {
+                out.writeInt(offset);
+            }
+            for (int target : upTargets) {
+                out.writeInt(target);
+            }
+            for (double weight : upWeights) {
+                out.writeDouble(weight);
+            }
+            for (int middle : upMiddle) {
+                out.writeInt(middle);
+            }
+        }
+    }
+
+    /**
+     * Maps a hierarchy written by write() into memory.
+     * @throws IOException If the file cannot be read, has an unsupported version, was
+     *                     built for a different graph, or is truncated or corrupt.
+     */
+    static ContractionHierarchy read(String path, CompactGraph graph) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.order(ByteOrder.BIG_ENDIAN);
+            if (buf.remaining() < 8 || buf.getInt() != MAGIC) {
+                throw new IOException(path + " is not a contraction hierarchy.");
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported contraction hierarchy version " + version
+                        + " in " + path + "; expected " + VERSION + ".");
+            }
+            if (buf.getLong() != graph.fingerprint()) {
+                throw new IOException(path + " was built for a different graph.");
+            }
+            int n = buf.getInt();
+            int m = buf.getInt();
+            /* Each vertex takes 8 bytes plus 4 for the last offset, each edge 16 bytes. */
+            if (n != graph.size() || m < 0 || 8L * n + 4 + 16L * m > buf.remaining()) {
+                throw new IOException("Truncated or corrupt contraction hierarchy " + path
+                        + ": " + n + " vertices and " + m + " edges do not fit.");
+            }
+            int[] rank = new int[n];
+            buf.asIntBuffer().get(rank);
+            buf.position(buf.position() + n * 4);
+            int[] upOffsets = new int[n + 1];
+            buf.asIntBuffer().get(upOffsets);
+            buf.position(buf.position() + (n + 1) * 4);
+            int[] upTargets = new int[m];
+            buf.asIntBuffer().get(upTargets);
+            buf.position(buf.position() + m * 4);
+            double[] upWeights = new double[m];
+            buf.asDoubleBuffer().get(upWeights);
+            buf.position(buf.position() + m * 8);
+            int[] upMiddle = new int[m];
+            buf.asIntBuffer().get(upMiddle);
+            if (!consistent(n, m, rank, upOffsets, upTargets, upMiddle)) {
+                throw new IOException("Corrupt contraction hierarchy " + path + ".");
+            }
+            return new ContractionHierarchy(graph, rank, upOffsets, upTargets, upWeights,
+                    upMiddle);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated contraction hierarchy " + path + ".", e);
+        }
+    }
+
+    /** Whether the arrays read from a file index only vertices and edges that exist. */
+    private static boolean consistent(int n, int m, int[] rank, int[] upOffsets,
+                                      int[] upTargets, int[] upMiddle) {
+        if (upOffsets[0] != 0 || upOffsets[n] != m) {
+            return false;
+        }
+        for (int v = 0; v < n; v++) {
+            if (rank[v] < 0 || rank[v] >= n || upOffsets[v + 1] < upOffsets[v]) {
+                return false;
+            }
+        }
+        for (int e = 0; e < m; e++) {
+            if (upTargets[e] < 0 || upTargets[e] >= n || upMiddle[e] < -1 || upMiddle[e] >= n) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Mutable working state for preprocessing. Keeps a growable adjacency list per vertex
+     * holding the original segments and shortcuts between vertices that are not yet
+     * contracted; a contracted vertex is removed from its neighbours' lists, so searches
+     * never scan it again. Vertices are contracted in order of priority: the edge difference
+     * (shortcuts added minus edges removed) plus the vertex's level in the hierarchy so far,
+     * which spreads contraction evenly over the map. Contracting a vertex only changes its
+     * neighbours' priorities, so those are recomputed right after.
+     */
+    private static class Builder {
+        private final CompactGraph graph;
+        private final int n;
+        private final int[][] nbr;
+        private final double[][] weight;
+        private final int[][] mid;
+        private final int[] degree;
+        /** One more than the highest level of a contracted neighbour, 0 if there is none. */
+        private final int[] level;
+
+        /* Witness search state, reset through the touched list after each search. */
+        private final double[] dist;
+        private final int[] hops;
+        private final IndexedHeap heap;
+        /** targetStamp[w] == stamp marks the vertices the current witness search looks for. */
+        private final int[] targetStamp;
+        private int stamp;
+        private int[] touched = new int[64];
+        private int touchedCount;
+
+        /* Upward edges of each contracted vertex. */
+        private final int[][] upNbr;
+        private final double[][] upWeight;
+        private final int[][] upMid;
+
+        Builder(CompactGraph graph) {
+            this.graph = graph;
+            this.n = graph.size();
+            nbr = new int[n][];
+            weight = new double[n][];
+            mid = new int[n][];
+            degree = new int[n];
+            level = new int[n];
+            dist = new double[n];
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+            hops = new int[n];
+            targetStamp = new int[n];
+            heap = new IndexedHeap(n);
+            upNbr = new int[n][];
+            upWeight = new double[n][];
+            upMid = new int[n][];
+            for (int v = 0; v < n; v++) {
+                int size = Math.max(1, graph.offsets[v + 1] - graph.offsets[v]);
+                nbr[v] = new int[size];
+                weight[v] = new double[size];
+                mid[v] = new int[size];
+                for (int e = graph.offsets[v]; e < graph.offsets[v + 1]; e++) {
+                    int w = graph.targets[e];
+                    if (w != v) {
+                        addEdge(v, w, graph.weights[e], -1);
+                    }
+                }
+            }
+        }
+
+        ContractionHierarchy build() {
+            IndexedHeap order = new IndexedHeap(n);
+            for (int v = 0; v < n; v++) {
+                order.push(v, priority(v));
+            }
+            int[] rank = new int[n];
+            int next = 0;
+            while (!order.isEmpty()) {
+                int v = order.poll();
+                rank[v] = next++;
+                contract(v, false);
+                for (int i = 0; i < degree[v]; i++) {
+                    int u = nbr[v][i];
+                    level[u] = Math.max(level[u], level[v] + 1);
+                    order.update(u, priority(u));
+                }
+            }
+
+            int[] upOffsets = new int[n + 1];
+            for (int v = 0; v < n; v++) {
+                upOffsets[v + 1] = upOffsets[v] + upNbr[v].length;
+            }
+            int m = upOffsets[n];
+            int[] upTargets = new int[m];
+            double[] upWeights = new double[m];
+            int[] upMiddle = new int[m];
+            for (int v = 0; v < n; v++) {
+                System.arraycopy(upNbr[v], 0, upTargets, upOffsets[v], upNbr[v].length);
+                System.arraycopy(upWeight[v], 0, upWeights, upOffsets[v], upNbr[v].length);
+                System.arraycopy(upMid[v], 0, upMiddle, upOffsets[v], upNbr[v].length);
+            }
+            return new ContractionHierarchy(graph, rank, upOffsets, upTargets, upWeights,
+                    upMiddle);
+        }
+
+        private double priority(int v) {
+            int ed = contract(v, true) - degree[v];
+            return ed + level[v];
+        }
+
+        /**
+         * Contracts v, or with simulate set only counts the shortcuts contracting it would add.
+         * The simulation uses a short hop-limited witness search, so it may count a few
+         * shortcuts the real contraction finds witnesses for.
+         */
+        private int contract(int v, boolean simulate) {
+            int shortcuts = 0;
+            int[] vn = nbr[v];
+            double[] vw = weight[v];
+            int settleLimit = simulate ? SIMULATION_SETTLE_LIMIT : WITNESS_SETTLE_LIMIT;
+            int hopLimit = simulate ? SIMULATION_HOP_LIMIT : Integer.MAX_VALUE;
+            for (int i = 0; i < degree[v] - 1; i++) {
+                int u = vn[i];
+                double maxOut = 0;
+                for (int j = i + 1; j < degree[v]; j++) {
+                    maxOut = Math.max(maxOut, vw[j]);
+                }
+                stamp++;
+                for (int j = i + 1; j < degree[v]; j++) {
+                    targetStamp[vn[j]] = stamp;
+                }
+                witnessSearch(u, v, vw[i] + maxOut, settleLimit, hopLimit, degree[v] - 1 - i);
+                for (int j = i + 1; j < degree[v]; j++) {
+                    int w = vn[j];
+                    double via = vw[i] + vw[j];
+                    if (dist[w] > via) {
+                        shortcuts++;
+                        if (!simulate) {
+                            addEdge(u, w, via, v);
+                            addEdge(w, u, via, v);
+                        }
+                    }
+                }
+                resetWitness();
+            }
+            if (!simulate) {
+                upNbr[v] = Arrays.copyOf(vn, degree[v]);
+                upWeight[v] = Arrays.copyOf(vw, degree[v]);
+                upMid[v] = Arrays.copyOf(mid[v], degree[v]);
+                for (int i = 0; i < degree[v]; i++) {
+                    removeEdge(vn[i], v);
+                }
+            }
+            return shortcuts;
+        }
+
+        /**
+         * Dijkstra from u that avoids v, bounded by limit and by the number of vertices
+         * settled, and that does not extend paths of more than hopLimit edges. Stops early
+         * once all targets marked in targetStamp are settled.
+         */
+        private void witnessSearch(int u, int v, double limit, int settleLimit, int hopLimit,
+                                   int targets) {
+            touch(u, 0.0, 0);
+            heap.push(u, 0.0);
+            int settled = 0;
+            while (!heap.isEmpty() && settled < settleLimit) {
+                int x = heap.poll();
+                settled++;
+                if (dist[x] > limit) {
+                    break;
+                }
+                if (targetStamp[x] == stamp && --targets == 0) {
+                    break;
+                }
+                if (hops[x] >= hopLimit) {
+                    continue;
+                }
+                for (int i = 0; i < degree[x]; i++) {
+                    int y = nbr[x][i];
+                    if (y == v) {
+                        continue;
+                    }
+                    double d = dist[x] + weight[x][i];
+                    if (d < dist[y]) {
+                        touch(y, d, hops[x] + 1);
+                        heap.push(y, d);
+                    }
+                }
+            }
+        }
+
+        private void touch(int v, double d, int h) {
+            if (dist[v] == Double.POSITIVE_INFINITY) {
+                if (touchedCount == touched.length) {
+                    touched = Arrays.copyOf(touched, touchedCount * 2);
+                }
+                touched[touchedCount++] = v;
+            }
+            dist[v] = d;
+            hops[v] = h;
+        }
+
+        private void resetWitness() {
+            for (int i = 0; i < touchedCount; i++) {
+                dist[touched[i]] = Double.POSITIVE_INFINITY;
+            }
+            touchedCount = 0;
+            heap.clear();
+        }
+
+        /** Adds the edge u-w, or shortens the existing one if w is shorter. */
+        private void addEdge(int u, int w, double wt, int middle) {
+            for (int i = 0; i < degree[u]; i++) {
+                if (nbr[u][i] == w) {
+                    if (wt < weight[u][i]) {
+                        weight[u][i] = wt;
+                        mid[u][i] = middle;
+                    }
+                    return;
+                }
+            }
+            if (degree[u] == nbr[u].length) {
+                int size = nbr[u].length * 2;
+                nbr[u] = Arrays.copyOf(nbr[u], size);
+                weight[u] = Arrays.copyOf(weight[u], size);
+                mid[u] = Arrays.copyOf(mid[u], size);
+            }
+            nbr[u][degree[u]] = w;
+            weight[u][degree[u]] = wt;
+            mid[u][degree[u]] = middle;
+            degree[u]++;
+        }
+
+        /** Removes the edge u-w from u's list by moving the last edge into its slot. */
+        private void removeEdge(int u, int w) {
+            for (int i = 0; i < degree[u]; i++) {
+                if (nbr[u][i] == w) {
+                    int last = --degree[u];
+                    nbr[u][i] = nbr[u][last];
+                    weight[u][i] = weight[u][last];
+                    mid[u][i] = mid[u][last];
+                    return;
+                }
+            }
+        }
+    }
+}
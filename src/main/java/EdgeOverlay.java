@@ -0,0 +1,143 @@
+import java.util.Arrays;
+
+/**
+ * Runtime overrides of road weights, applied on top of an immutable CompactGraph: closed
+ * segments and segments whose cost is multiplied by a penalty factor, for example for
+ * construction or an event. Overlays are immutable too. A change produces a new overlay with
+ * the next version number, which GraphDB publishes through a single atomic reference, so a
+ * search reads the reference once and sees one consistent set of overrides without locking.
+ *
+ * Factors are at least 1, so an overridden edge never gets cheaper than the base graph says.
+ * That keeps every lower bound computed on the base graph, such as the landmark distances,
+ * valid under any overlay. The contraction hierarchy stores exact base distances, though,
+ * and is bypassed while any override is active.
+ */
+final class EdgeOverlay {
+    /** The overlay of a freshly loaded graph: no overrides, version 0. */
+    static final EdgeOverlay EMPTY = new EdgeOverlay(0, new int[0], new double[0]);
+
+    /** Incremented by every change, so caches can tell which overlay a result came from. */
+    final long version;
+    /** Overridden adjacency entries and their factors; infinity marks a closed edge. */
+    private final int[] edges;
+    private final double[] factors;
+    /** Position of each overridden edge in edges, keyed by the edge index. */
+    private final IdIndex positions;
+
+    private EdgeOverlay(long version, int[] edges, double[] factors) {
+        this.version = version;
+        this.edges = edges;
+        this.factors = factors;
+        this.positions = new IdIndex(edges.length);
+        for (int i = 0; i < edges.length; i++) {
+            positions.put(edges[i], i);
+        }
+    }
+
+    /** Whether no edge is overridden. */
+    boolean isEmpty() {
+        return edges.length == 0;
+    }
+
+    /** Number of overridden adjacency entries. */
+    int size() {
+        return edges.length;
+    }
+
+    /** The adjacency entry of the i-th override. */
+    int edge(int i) {
+        return edges[i];
+    }
+
+    /** The factor of the i-th override, or positive infinity if the edge is closed. */
+    double factor(int i) {
+        return factors[i];
+    }
+
+    /** The weight of edge e given its base weight: infinite if closed, else scaled by its factor. */
+    double weight(int e, double base) {
+        if (edges.length == 0) {
+            return base;
+        }
+        int i = positions.get(e);
+        if (i < 0) {
+            return base;
+        }
+        return factors[i] == Double.POSITIVE_INFINITY ? Double.POSITIVE_INFINITY
+                : base * factors[i];
+    }
+
+    /**
+     * Returns the next version of this overlay, with edge changed[i] overridden by
+     * newFactors[i]. A factor of exactly 1 removes the override. The cost is proportional to
+     * the number of overrides, never to the size of the graph.
+     * @throws IllegalArgumentException If a factor is less than 1 or not a number.
+     */
+    EdgeOverlay with(int[] changed, double[] newFactors) {
+        for (double f : newFactors) {
+            if (!(f >= 1)) {
+                throw new IllegalArgumentException("Edge factors must be at least 1, not " + f
+                        + ".");
+            }
+        }
+        int[] mergedEdges = Arrays.copyOf(edges, edges.length + changed.length);
+        double[] mergedFactors = Arrays.copyOf(factors, mergedEdges.length);
+        IdIndex merged = new IdIndex(mergedEdges.length);
+        for (int i = 0; i < edges.length; i++) {
+            merged.put(edges[i], i);
+        }
+        int size = edges.length;
+        for (int i = 0; i < changed.length; i++) {
+            int p = merged.get(changed[i]);
+            if (p < 0) {
+                p = size++;
+                merged.put(changed[i], p);
+                mergedEdges[p] = changed[i];
+            }
+            mergedFactors[p] = newFactors[i];
+        }
+        int kept = 0;
+        for (int p = 0; p < size; p++) {
+            if (mergedFactors[p] != 1) {
+                mergedEdges[kept] = mergedEdges[p];
+                mergedFactors[kept++] = mergedFactors[p];
+            }
+        }
+        return new EdgeOverlay(version + 1, Arrays.copyOf(mergedEdges, kept),
+                Arrays.copyOf(mergedFactors, kept));
+    }
+
+    /**
+     * Returns the next version of this overlay for a graph rebuilt from changed data. Every
+     * override moves to the edges of to that join the same two OSM nodes; overrides of
+     * segments that no longer exist are dropped.
+     */
+    EdgeOverlay remap(CompactGraph from, CompactGraph to) {
+        int[] changed = new int[0];
+        double[] newFactors = new double[0];
+        int count = 0;
+        for (int i = 0; i < edges.length; i++) {
+            int v = to.indexOf(from.ids[from.edgeSource(edges[i])]);
+            int w = to.indexOf(from.ids[from.targets[edges[i]]]);
+            if (v < 0 || w < 0) {
+                continue;
+            }
+            for (int e = to.offsets[v]; e < to.offsets[v + 1]; e++) {
+                if (to.targets[e] == w) {
+                    if (count == changed.length) {
+                        changed = Arrays.copyOf(changed, 2 * count + 2);
+                        newFactors = Arrays.copyOf(newFactors, changed.length);
+                    }
+                    changed[count] = e;
+                    newFactors[count++] = factors[i];
+                }
+            }
+        }
+        return cleared().with(Arrays.copyOf(changed, count), Arrays.copyOf(newFactors, count));
+    }
+
+    /** Returns the next version of this overlay, with no overrides. */
+    EdgeOverlay cleared() {
+        return new EdgeOverlay(version + 1, new int[0], new double[0]);
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Measures how the memory layout of the graph affects query latency. The graph is loaded
+ * once, then the same random closest() and route queries run against two copies of it: one
+ * numbered along a Hilbert curve, as graphs are loaded, and one numbered in increasing OSM id
+ * order, the layout used before vertices were reordered. The copies hold identical roads,
+ * so any difference in time comes from cache behaviour.
+ *
+ * Usage: java GraphBenchmark [osm or .graph snapshot path] [queries]
+ */
+public class GraphBenchmark {
+    private static final String OSM_DB_PATH = "berkeley.osm";
+    private static final int DEFAULT_QUERIES = 1000;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws IOException {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_QUERIES;
+        GraphDB loaded = path.endsWith(".graph") ? GraphDB.fromSnapshot(path) : new GraphDB(path);
+        CompactGraph hilbert = loaded.graph().hilbertOrdered();
+        CompactGraph byId = hilbert.permute(idOrder(hilbert));
+        System.out.println(path + ": " + hilbert.size() + " vertices, " + hilbert.edgeCount()
+                + " adjacency entries, " + queries + " queries per measurement.");
+
+        double[][] points = randomPoints(hilbert, 2 * queries, new Random(14));
+        GraphDB[] layouts = {
+            new GraphDB(byId, Collections.emptyMap(), Collections.emptyList()),
+            new GraphDB(hilbert, Collections.emptyMap(), Collections.emptyList())
+        };
+        String[] names = {"id order", "hilbert"};
+
+        /* Warm up both layouts before measuring either, so neither pays for JIT compilation. */
+        for (GraphDB g : layouts) {
+            closest(g, points);
+            routes(g, points, queries, Router.Algorithm.ASTAR);
+        }
+        System.out.printf("%-10s %14s %14s %14s%n", "layout", "closest (us)", "astar (us)",
+                "bidir (us)");
+        for (int i = 0; i < layouts.length; i++) {
+            double closest = Double.POSITIVE_INFINITY;
+            double astar = Double.POSITIVE_INFINITY;
+            double bidirectional = Double.POSITIVE_INFINITY;
+            for (int round = 0; round < ROUNDS; round++) {
+                closest = Math.min(closest, closest(layouts[i], points));
+                astar = Math.min(astar, routes(layouts[i], points, queries,
+                        Router.Algorithm.ASTAR));
+                bidirectional = Math.min(bidirectional, routes(layouts[i], points, queries,
+                        Router.Algorithm.BIDIRECTIONAL));
+            }
+            System.out.printf("%-10s %14.2f %14.2f %14.2f%n", names[i], closest, astar,
+                    bidirectional);
+        }
+    }
+
+    /** The permutation that numbers the vertices of graph in increasing id order. */
+    private static int[] idOrder(CompactGraph graph) {
+        int n = graph.size();
+        long[] ids = graph.ids.clone();
+        Arrays.sort(ids);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = graph.indexOf(ids[i]);
+        }
+        return order;
+    }
+
+    /** Uniformly random {lon, lat} points within the bounding box of graph. */
+    private static double[][] randomPoints(CompactGraph graph, int count, Random random) {
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < graph.size(); i++) {
+            minLon = Math.min(minLon, graph.lons[i]);
+            maxLon = Math.max(maxLon, graph.lons[i]);
+            minLat = Math.min(minLat, graph.lats[i]);
+            maxLat = Math.max(maxLat, graph.lats[i]);
+        }
+        double[][] points = new double[count][];
+        for (int i = 0; i < count; i++) {
+            points[i] = new double[]{minLon + random.nextDouble() * (maxLon - minLon),
+                minLat + random.nextDouble() * (maxLat - minLat)};
+        }
+        return points;
+    }
+
+    /** Mean microseconds per GraphDB.closest call over all points. */
+    private static double closest(GraphDB g, double[][] points) {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (double[] p : points) {
+            checksum += g.closest(p[0], p[1]);
+        }
+        long elapsed = System.nanoTime() - start;
+        consume(checksum);
+        return elapsed / 1e3 / points.length;
+    }
+
+    /** Mean microseconds per route between consecutive pairs of points. */
+    private static double routes(GraphDB g, double[][] points, int queries,
+                                 Router.Algorithm algorithm) {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            double[] from = points[2 * i];
+            double[] to = points[2 * i + 1];
+            checksum += Router.shortestPath(g, from[0], from[1], to[0], to[1], algorithm).size();
+        }
+        long elapsed = System.nanoTime() - start;
+        consume(checksum);
+        return elapsed / 1e3 / queries;
+    }
+
+    /** Keeps the JIT from discarding the measured work. */
+    private static void consume(long checksum) {
+        if (checksum == 42) {
+            System.out.print("");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One-time "compile" step that parses and cleans an OSM file and writes the result as a
+ * binary graph snapshot. MapServer opens the snapshot on startup when it exists, which skips
+ * the XML parse entirely.
+ *
+ * With --ch it also runs Contraction Hierarchy preprocessing and writes the hierarchy to the
+ * snapshot path plus ".ch", where MapServer picks it up for the CONTRACTION_HIERARCHY
+ * routing algorithm.
+ *
+ * With --largest-component every vertex outside the largest connected component is dropped
+ * before the snapshot is written, which matches running MapServer with
+ * bearmaps.graph.components=largest.
+ *
+ * The input may be OSM XML or, if its name ends in ".pbf", OSM PBF.
+ *
+ * Usage: java GraphCompiler [--ch] [--largest-component] [osm path] [snapshot path]
+ */
+public class GraphCompiler {
+    private static final String OSM_DB_PATH = "berkeley.osm";
+    private static final String GRAPH_SNAPSHOT_PATH = "berkeley.graph";
+
+    static final String HIERARCHY_SUFFIX = ".ch";
+
+    public static void main(String[] args) throws IOException {
+        boolean buildHierarchy = false;
+        boolean largestComponent = false;
+        List<String> paths = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--ch")) {
+                buildHierarchy = true;
+            } else if (arg.equals("--largest-component")) {
+                largestComponent = true;
+            } else {
+                paths.add(arg);
+            }
+        }
+        String osmPath = paths.size() > 0 ? paths.get(0) : OSM_DB_PATH;
+        String snapshotPath = paths.size() > 1 ? paths.get(1) : GRAPH_SNAPSHOT_PATH;
+
+        long start = System.currentTimeMillis();
+        GraphDB g = new GraphDB(osmPath);
+        if (largestComponent) {
+            g.keepLargestComponent();
+        }
+        long parsed = System.currentTimeMillis();
+        GraphStore.write(g, snapshotPath);
+        long written = System.currentTimeMillis();
+
+        System.out.println("Parsed " + osmPath + " in " + (parsed - start) + " ms; "
+                + g.graph().size() + " vertices, " + g.graph().edgeCount() + " adjacency entries.");
+        System.out.println("Wrote " + snapshotPath + " in " + (written - parsed) + " ms.");
+
+        if (buildHierarchy) {
+            ContractionHierarchy ch = ContractionHierarchy.build(g.graph());
+            long contracted = System.currentTimeMillis();
+            ch.write(snapshotPath + HIERARCHY_SUFFIX);
+            System.out.println("Built contraction hierarchy with " + ch.edgeCount()
+                    + " upward edges in " + (contracted - written) + " ms; wrote "
+                    + snapshotPath + HIERARCHY_SUFFIX + ".");
+        }
+    }
+}
@@ -1,43 +1,89 @@
-import org.xml.sax.SAXException;
-
-import java.io.File;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
- * Uses your GraphBuildingHandler to convert the XML files into a graph. Your
+ * Uses OsmReader to convert the XML files into a graph. Your
  * code must include the vertices, adjacent, distance, closest, lat, and lon
- * methods. You'll also need to include instance variables and methods for
- * modifying the graph (e.g. addNode and addEdge).
+ * methods.
  *
  * @author Alan Yao, Josh Hug
  */
 public class GraphDB {
-    /** Your instance variables for storing the graph. You should consider
-     * creating helper classes, e.g. Node, Edge, etc. */
-    public Map<Long,Vertex> verticesMap = new HashMap<>();
-    private Map<Long,Edge> edgesMap = new HashMap<>();
     public TrieST<Location> locationTrieST = new TrieST<>();
+    /** Every named location in the order it was read, so the index can be written out and
+     * rebuilt identically. */
+    private List<Location> locations = new ArrayList<>();
+    /** Names of the named ways kept in the graph, by way id. */
+    private Map<Long,String> wayNames = new HashMap<>();
+    /** The cleaned graph in compressed-sparse-row form; all queries are answered from here. */
+    private CompactGraph graph;
+    /** Nearest-vertex index over graph, built once the graph is final. */
+    private KdTree spatialIndex;
+    /** Connected-component label of every vertex of graph. */
+    private ConnectedComponents components;
+    /** Nearest-vertex index over the largest component only, or null to snap routes to
+     * any vertex. */
+    private volatile KdTree largestComponentIndex;
+    /** Optional speedup structures for Router, attached after loading. */
+    private volatile ContractionHierarchy hierarchy;
+    private volatile Landmarks landmarks;
+    /** Cache of routes computed on this graph; it is discarded along with the graph. */
+    private volatile RouteCache routeCache;
+    /** Current road closures and penalties; replaced as a whole on every change. */
+    private final AtomicReference<EdgeOverlay> overlay = new AtomicReference<>(EdgeOverlay.EMPTY);
+    /** The data change files are applied to, or null if this GraphDB cannot take changes. */
+    private OsmSource source;
     /**
-     * Example constructor shows how to create and start an XML parser.
-     * You do not need to modify this constructor, but you're welcome to do so.
-     * @param dbPath Path to the XML file to be parsed.
+     * Reads and cleans an OSM file. Parsing runs on a pipeline of worker threads, and
+     * nodes that are not part of any road are dropped before they become vertices.
+     * @param dbPath Path to the file to be parsed: OSM PBF if it ends in ".pbf", else XML.
+     * @throws IllegalStateException If the file cannot be read or parsed.
      */
     public GraphDB(String dbPath) {
+        this(dbPath, false);
+    }
+
+    private GraphDB(String dbPath, boolean keepSource) {
+        OsmReader reader = new OsmReader();
+        reader.setKeepSource(keepSource);
         try {
-            File inputFile = new File(dbPath);
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
-            saxParser.parse(inputFile, gbh);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
-            e.printStackTrace();
+            reader.read(dbPath);
+        } catch (IOException | XMLStreamException e) {
+            throw new IllegalStateException("Could not read " + dbPath + ": " + e.getMessage(),
+                    e);
         }
-        clean();
+        load(reader.graph(), reader.wayNames(), reader.locations());
+        source = reader.source();
+    }
+
+    /**
+     * Reads an OSM file like the constructor, but also keeps the node positions and road
+     * ways needed to apply change files to it later (see applyChanges).
+     * @throws IllegalStateException If the file cannot be read or parsed.
+     */
+    public static GraphDB openForChanges(String dbPath) {
+        return new GraphDB(dbPath, true);
+    }
+
+    /**
+     * Creates a GraphDB from already-cleaned data, as read back from a compiled snapshot.
+     * The location index is rebuilt in the original insertion order.
+     */
+    GraphDB(CompactGraph graph, Map<Long,String> wayNames, List<Location> locations) {
+        load(graph, wayNames, locations);
+    }
+
+    /**
+     * Opens a graph snapshot written by {@link GraphStore#write}. The file is memory-mapped
+     * and copied straight into the compact arrays, so no XML is parsed.
+     * @param snapshotPath Path to the compiled graph file.
+     * @throws IOException If the file cannot be read or has an unsupported format version.
+     */
+    public static GraphDB fromSnapshot(String snapshotPath) throws IOException {
+        return GraphStore.read(snapshotPath);
     }
 
 
@@ -50,139 +96,328 @@ public class GraphDB {
         return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
     }
 
+    /** Installs the cleaned graph, its spatial index and the location index. */
+    private void load(CompactGraph graph, Map<Long,String> wayNames, List<Location> locations) {
+        this.graph = graph;
+        this.spatialIndex = new KdTree(graph);
+        this.components = new ConnectedComponents(graph);
+        this.wayNames = wayNames;
+        for (Location location : locations) {
+            add_location(location);
+        }
+    }
+
+    /** The compact graph backing this GraphDB, for callers that work on dense indices. */
+    CompactGraph graph() {
+        return graph;
+    }
+
+    /** The connected components of graph. */
+    ConnectedComponents components() {
+        return components;
+    }
+
+    /**
+     * Drops every vertex outside the largest connected component, so that small road islands
+     * left over from clipping the extract can never be routed to. Does nothing if the graph is
+     * already connected. Since this replaces the graph, it must be called before a contraction
+     * hierarchy or landmarks are attached; the ones already attached are dropped. Road
+     * overrides move to the same segments of the remaining graph.
+     */
+    void keepLargestComponent() {
+        if (components.count() <= 1) {
+            return;
+        }
+        CompactGraph whole = graph;
+        graph = graph.component(components, 0);
+        spatialIndex = new KdTree(graph);
+        components = new ConnectedComponents(graph);
+        hierarchy = null;
+        landmarks = null;
+        /* Overrides name adjacency entries of the whole graph; move them to the same segments
+         * of the component, dropping those on the islands. */
+        EdgeOverlay current = overlay.get();
+        if (!current.isEmpty()) {
+            overlay.set(current.remap(whole, graph));
+        }
+        if (largestComponentIndex != null) {
+            largestComponentIndex = spatialIndex;
+        }
+        RouteCache cache = routeCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Chooses whether routes start and end at the closest vertex of the largest connected
+     * component rather than the closest vertex overall. With this on, a point next to a road
+     * island is routed from the main network instead of getting no route at all.
+     */
+    void setSnapToLargestComponent(boolean snap) {
+        if (!snap) {
+            largestComponentIndex = null;
+        } else if (components.count() <= 1) {
+            largestComponentIndex = spatialIndex;
+        } else {
+            largestComponentIndex = new KdTree(graph, components.vertices(0));
+        }
+    }
+
+    /**
+     * Dense index of the vertex routes from or to (lon, lat) use: the closest vertex, or the
+     * closest vertex in the largest component if setSnapToLargestComponent is on.
+     */
+    int snap(double lon, double lat) {
+        KdTree index = largestComponentIndex;
+        return (index != null ? index : spatialIndex).nearest(lon, lat);
+    }
+
+    /**
+     * Like snap above, but only considers vertices with at least one road profile may use,
+     * so that a bike route never starts on a motorway ramp. Returns -1 if there is none.
+     */
+    int snap(double lon, double lat, RoutingProfile profile) {
+        if (profile.allowsAll()) {
+            return snap(lon, lat);
+        }
+        KdTree index = largestComponentIndex;
+        CompactGraph g = graph;
+        return (index != null ? index : spatialIndex).nearest(lon, lat, v -> profile.usable(g, v));
+    }
+
+    /** The contraction hierarchy for this graph, or null if none has been attached. */
+    ContractionHierarchy contractionHierarchy() {
+        return hierarchy;
+    }
+
+    /**
+     * Attaches a contraction hierarchy built for this graph, enabling the
+     * CONTRACTION_HIERARCHY routing algorithm.
+     */
+    void setContractionHierarchy(ContractionHierarchy hierarchy) {
+        if (hierarchy.graph != graph) {
+            throw new IllegalArgumentException("Contraction hierarchy was built for another graph.");
+        }
+        this.hierarchy = hierarchy;
+    }
+
+    /** The landmark tables used for the A* heuristic, or null if none are attached. */
+    Landmarks landmarks() {
+        return landmarks;
+    }
+
+    /**
+     * Computes landmark tables for count landmarks and attaches them, replacing any previous
+     * tables. A count of zero goes back to the plain straight-line heuristic.
+     */
+    void computeLandmarks(int count) {
+        landmarks = count > 0 ? Landmarks.select(graph, count) : null;
+    }
+
+    /**
+     * The current road overrides. Callers should read this once per query and use that
+     * snapshot throughout, so that a concurrent change never mixes two versions.
+     */
+    EdgeOverlay overlay() {
+        return overlay.get();
+    }
+
     /**
-     *  Remove nodes with no connections from the graph.
-     *  While this does not guarantee that any two nodes in the remaining graph are connected,
-     *  we can reasonably assume this since typically roads are connected.
+     * Overrides the road segments between the vertices with OSM ids from[i] and to[i], in
+     * both directions: positive infinity closes a segment, a factor above 1 multiplies its
+     * cost and a factor of 1 restores it. All segments change together in one new overlay
+     * version, which is returned. The work done is proportional to the number of overrides.
+     * @throws IllegalArgumentException If a pair is not joined by a road segment, or the
+     * factor is less than 1.
      */
-    private void clean() {
-        //Vertex[] vertices = (Vertex[]) verticesMap.values().toArray();
-        HashSet<Long> removeItemIDs = new HashSet<>();
-        for(Vertex v : verticesMap.values()){
-            // if nothing is connecting to this vertex, then delete it from the map
-            if(v.adj.size()==0){
-                removeItemIDs.add(v.id);
+    EdgeOverlay overrideSegments(long[] from, long[] to, double factor) {
+        CompactGraph g = graph;
+        int[] edges = new int[0];
+        int count = 0;
+        for (int i = 0; i < from.length; i++) {
+            int v = g.indexOf(from[i]);
+            int w = g.indexOf(to[i]);
+            int found = 0;
+            for (int k = 0; k < 2 && v >= 0 && w >= 0; k++) {
+                int a = k == 0 ? v : w;
+                int b = k == 0 ? w : v;
+                for (int e = g.offsets[a]; e < g.offsets[a + 1]; e++) {
+                    if (g.targets[e] == b) {
+                        if (count == edges.length) {
+                            edges = Arrays.copyOf(edges, 2 * count + 2);
+                        }
+                        edges[count++] = e;
+                        found++;
+                    }
+                }
+            }
+            if (found == 0) {
+                throw new IllegalArgumentException("No road segment between " + from[i]
+                        + " and " + to[i] + ".");
+            }
+        }
+        int[] changed = Arrays.copyOf(edges, count);
+        double[] factors = new double[count];
+        Arrays.fill(factors, factor);
+        while (true) {
+            EdgeOverlay current = overlay.get();
+            EdgeOverlay next = current.with(changed, factors);
+            if (overlay.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    /** Removes every road override, returning the new, empty overlay version. */
+    EdgeOverlay clearOverrides() {
+        while (true) {
+            EdgeOverlay current = overlay.get();
+            EdgeOverlay next = current.cleared();
+            if (overlay.compareAndSet(current, next)) {
+                return next;
             }
         }
-        verticesMap.keySet().removeAll(removeItemIDs);
+    }
+
+    /**
+     * Applies an OSM change file and returns the resulting GraphDB, leaving this one
+     * untouched so that it can keep serving until the caller switches over. The new GraphDB
+     * has its own graph, spatial index, components and location index, and takes over the
+     * road overrides whose segments still exist. Contraction hierarchies, landmarks and route
+     * caches are not carried over, since they describe the old graph.
+     *
+     * The change data moves to the returned GraphDB, so changes form a chain: the next
+     * change must be applied to the result of this one. If building the new graph fails, the
+     * change is rolled back and this GraphDB can still take the next one.
+     *
+     * The overrides are carried over as they are when this returns, so callers must not
+     * override roads on this GraphDB while the change is applied and published; MapServer
+     * serialises both on one lock.
+     * @throws IllegalStateException If this GraphDB was not opened with openForChanges, or a
+     * change has already been applied to it.
+     */
+    synchronized GraphDB applyChanges(OsmChange change) {
+        if (source == null) {
+            throw new IllegalStateException("This graph does not accept changes; open the OSM"
+                    + " file with openForChanges and apply changes to the latest version.");
+        }
+        Runnable undo = source.apply(change);
+        GraphDB next;
+        try {
+            next = source.toGraphDB();
+        } catch (RuntimeException | Error e) {
+            undo.run();
+            throw e;
+        }
+        next.source = source;
+        source = null;
+        next.overlay.set(overlay.get().remap(graph, next.graph));
+        return next;
+    }
+
+    /** The route cache in front of Router for this graph, or null if caching is off. */
+    RouteCache routeCache() {
+        return routeCache;
+    }
+
+    /** Puts a route cache in front of Router for this graph, or removes it when null. */
+    void setRouteCache(RouteCache routeCache) {
+        this.routeCache = routeCache;
+    }
+
+    /** All named locations, in the order they were added. */
+    List<Location> locations() {
+        return Collections.unmodifiableList(locations);
+    }
+
+    /** Names of the named road ways, keyed by OSM way id. */
+    Map<Long,String> wayNames() {
+        return Collections.unmodifiableMap(wayNames);
     }
 
     /** Returns an iterable of all vertex IDs in the graph. */
     Iterable<Long> vertices() {
-        //YOUR CODE HERE, this currently returns only an empty list.
-        return verticesMap.keySet();
+        final long[] ids = graph.ids;
+        return () -> new Iterator<Long>() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < ids.length;
+            }
+
+            @Override
+            public Long next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return ids[i++];
+            }
+        };
     }
 
     /** Returns ids of all vertices adjacent to v. */
     Iterable<Long> adjacent(long v) {
-        return verticesMap.get(v).adj;
+        int i = index(v);
+        List<Long> result = new ArrayList<>(graph.offsets[i + 1] - graph.offsets[i]);
+        for (int e = graph.offsets[i]; e < graph.offsets[i + 1]; e++) {
+            result.add(graph.ids[graph.targets[e]]);
+        }
+        return result;
     }
 
     /** Returns the Euclidean distance between vertices v and w, where Euclidean distance
      *  is defined as sqrt( (lonV - lonV)^2 + (latV - latV)^2 ). */
     double distance(long v, long w) {
-        Vertex vertexV = verticesMap.get(v);
-        Vertex vertexW = verticesMap.get(w);
-        double lonV = vertexV.lon;
-        double lonW = vertexW.lon;
-        double latV = vertexV.lat;
-        double latW = vertexW.lat;
-        return Math.sqrt( Math.pow((lonV-lonW),2) + Math.pow((latV-latW),2));
+        return graph.distance(index(v), index(w));
     }
 
-    /** Returns the vertex id closest to the given longitude and latitude. */
+    /**
+     * Returns the vertex id closest to the given longitude and latitude.
+     * @throws IllegalStateException If the graph has no vertices.
+     */
     long closest(double lon, double lat) {
-        if(verticesMap.keySet().size()==0){
-            System.out.println("Nothing inside the Graph, cannot find the closet vertex");
-        }
-        List<Vertex> vertices = new ArrayList<>(verticesMap.values());
-        Vertex first = vertices.get(0);
-        long result = first.id;
-        double lonDisPow = Math.pow(first.lon-lon,2);
-        double latDisPow = Math.pow(first.lat-lat,2);
-        for(Vertex v: vertices){
-            double currLonDisPow = Math.pow((v.lon-lon),2);
-            double currLatDisPow = Math.pow((v.lat-lat),2);
-            if(v.id == 53042711){
-            }
-            double totalCurrDis = Math.sqrt(currLatDisPow+currLonDisPow);
-            double totalLastDis = Math.sqrt(lonDisPow+latDisPow);
-            if(totalCurrDis<totalLastDis){
-                lonDisPow = currLonDisPow;
-                latDisPow = currLatDisPow;
-                result = v.id;
-            }
+        if (graph.size() == 0) {
+            throw new IllegalStateException("The graph is empty, so no vertex is closest.");
+        }
+        return graph.ids[spatialIndex.nearest(lon, lat)];
+    }
+
+    /** Returns the ids of the k vertices closest to the given longitude and latitude,
+     *  nearest first. */
+    long[] closest(double lon, double lat, int k) {
+        int[] nearest = spatialIndex.nearest(lon, lat, k);
+        long[] result = new long[nearest.length];
+        for (int i = 0; i < nearest.length; i++) {
+            result[i] = graph.ids[nearest[i]];
         }
         return result;
     }
 
     /** Longitude of vertex v. */
     double lon(long v) {
-        return verticesMap.get(v).lon;
+        return graph.lons[index(v)];
     }
 
     /** Latitude of vertex v. */
     double lat(long v) {
-        return verticesMap.get(v).lat;
-    }
-
-    void add_vertex(long id, double lon, double lat){
-        Vertex v = new Vertex(id,lon,lat);
-        verticesMap.put(v.id,v);
+        return graph.lats[index(v)];
     }
-    void delete_vertex(long id){
-        if(verticesMap.containsKey(id)){
-            verticesMap.remove(id);
-        }
-    }
-    void add_edge(Long id, List<Long> vertexList){
-        Edge e = new Edge(id,vertexList);
-        edgesMap.put(id,e);
-        for(int i = 0; i < vertexList.size()-1; i++){
-            long v1ID = vertexList.get(i);
-            long v2ID = vertexList.get(i+1);
-            Vertex v1 = verticesMap.get(v1ID);
-            Vertex v2 = verticesMap.get(v2ID);
-            v1.connectTo(v2ID);
-            v2.connectTo(v1ID);
-        }
-    }
-
-
-    static class Vertex{
-        long id;
-        String name;
-        double lon;
-        double lat;
-        List<Long> adj;
 
-        Vertex(long id, double lon, double lat){
-            this.id = id;
-            this.lon = lon;
-            this.lat = lat;
-            this.adj = new ArrayList<>();
-        }
-
-        void setName(String name){
-            this.name = name;
-        }
-
-        void connectTo(long vertexId){
-            adj.add(vertexId);
+    /** Dense index of vertex v, failing loudly on ids that are not in the graph. */
+    private int index(long v) {
+        int i = graph.indexOf(v);
+        if (i < 0) {
+            throw new IllegalArgumentException("No vertex with id " + v + " in the graph.");
         }
+        return i;
     }
 
-    static class Edge{
-        private long id;
-        private String name;
-        private List<Long> vertexList;
-        Edge(long name, List<Long> vertexList){
-            this.id = id;
-            this.vertexList = vertexList;
-        }
-        void setName(String name){
-            this.name = name;
-        }
+    void add_location(Location location){
+        locations.add(location);
+        String searchName = location.name.replaceAll("[^a-zA-Z\\s]+","").toLowerCase();
+        locationTrieST.put(searchName, location);
     }
 
     static class Location{
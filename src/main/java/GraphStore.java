@@ -0,0 +1,224 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes compiled graph snapshots. A snapshot holds everything GraphDB needs after
+ * clean(): the compact graph arrays, the names of the road ways and the named locations used
+ * by search. Loading one is a memory map plus bulk array copies, with no XML parsing.
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   int    MAGIC, int VERSION
+ *   int    n (vertices), int m (adjacency entries)
+ *   long[n] ids, double[n] lons, double[n] lats, int[n + 1] offsets, int[m] targets
+ *   byte[m] highways, byte[m] speeds
+ *   int    way name count, then per way: long id, string name
+ *   int    location count, then per location: long id, double lon, double lat, string name
+ * </pre>
+ * Strings are stored as an int byte length followed by UTF-8 bytes.
+ *
+ * Version 2 added the per-edge highway types and speed limits. Version 1 snapshots are
+ * rejected rather than read with default road types, since routing profiles would then
+ * silently treat every road alike; recompile them from the OSM file.
+ *
+ * A truncated or corrupt snapshot is reported as an IOException, like a missing one, so
+ * callers can fall back to the OSM file.
+ */
+class GraphStore {
+    static final int MAGIC = 0x424D4750; // "BMGP"
+    static final int VERSION = 2;
+
+    /** Writes g to path, replacing any existing file. */
+    static void write(GraphDB g, String path) throws IOException {
+        CompactGraph graph = g.graph();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(path), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(graph.size());
+            out.writeInt(graph.edgeCount());
+            for (long id : graph.ids) {
+                out.writeLong(id);
+            }
+            for (double lon : graph.lons) {
+                out.writeDouble(lon);
+            }
+            for (double lat : graph.lats) {
+                out.writeDouble(lat);
+            }
+            for (int offset : graph.offsets) {
+                out.writeInt(offset);
+            }
+            for (int target : graph.targets) {
+                out.writeInt(target);
+            }
+            out.write(graph.highways);
+            out.write(graph.speeds);
+
+            Map<Long, String> wayNames = g.wayNames();
+            out.writeInt(wayNames.size());
+            for (Map.Entry<Long, String> way : wayNames.entrySet()) {
+                out.writeLong(way.getKey());
+                writeString(out, way.getValue());
+            }
+
+            List<GraphDB.Location> locations = g.locations();
+            out.writeInt(locations.size());
+            for (GraphDB.Location location : locations) {
+                out.writeLong(location.id);
+                out.writeDouble(location.lon);
+                out.writeDouble(location.lat);
+                writeString(out, location.name);
+            }
+        }
+    }
+
+    /**
+     * Whether the snapshot at snapshotPath is older than the OSM file at sourcePath it was
+     * compiled from, so that reading it would serve outdated data. A missing source file
+     * never makes a snapshot stale.
+     */
+    static boolean isStale(String snapshotPath, String sourcePath) {
+        File source = new File(sourcePath);
+        return source.exists() && source.lastModified() > new File(snapshotPath).lastModified();
+    }
+
+    /**
+     * Maps the snapshot at path into memory and builds a GraphDB from it.
+     * @throws IOException If the file cannot be read, or is not a complete, consistent
+     * snapshot of the current version.
+     */
+    static GraphDB read(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.order(ByteOrder.BIG_ENDIAN);
+            if (buf.remaining() < 8 || buf.getInt() != MAGIC) {
+                throw new IOException(path + " is not a graph snapshot.");
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported graph snapshot version " + version
+                        + " in " + path + "; expected " + VERSION + ".");
+            }
+            if (buf.remaining() < 8) {
+                throw new IOException("Truncated graph snapshot " + path + ".");
+            }
+            int n = buf.getInt();
+            int m = buf.getInt();
+            /* Each vertex takes 28 bytes plus 4 for the last offset, each entry 6 bytes. */
+            if (n < 0 || m < 0 || 28L * n + 4 + 6L * m > buf.remaining()) {
+                throw new IOException("Truncated graph snapshot " + path + ": " + n
+                        + " vertices and " + m + " edges do not fit.");
+            }
+
+            long[] ids = new long[n];
+            buf.asLongBuffer().get(ids);
+            skip(buf, n * 8L);
+            double[] lons = new double[n];
+            buf.asDoubleBuffer().get(lons);
+            skip(buf, n * 8L);
+            double[] lats = new double[n];
+            buf.asDoubleBuffer().get(lats);
+            skip(buf, n * 8L);
+            int[] offsets = new int[n + 1];
+            buf.asIntBuffer().get(offsets);
+            skip(buf, (n + 1) * 4L);
+            int[] targets = new int[m];
+            buf.asIntBuffer().get(targets);
+            skip(buf, m * 4L);
+            byte[] highways = new byte[m];
+            buf.get(highways);
+            byte[] speeds = new byte[m];
+            buf.get(speeds);
+            checkAdjacency(path, n, m, offsets, targets);
+
+            /* A way name takes at least 12 bytes, a location at least 28. */
+            int wayCount = count(buf, path, 12);
+            Map<Long, String> wayNames = new HashMap<>(wayCount * 2);
+            for (int i = 0; i < wayCount; i++) {
+                long id = buf.getLong();
+                wayNames.put(id, readString(buf, path));
+            }
+
+            int locationCount = count(buf, path, 28);
+            List<GraphDB.Location> locations = new ArrayList<>(locationCount);
+            for (int i = 0; i < locationCount; i++) {
+                long id = buf.getLong();
+                double lon = buf.getDouble();
+                double lat = buf.getDouble();
+                locations.add(new GraphDB.Location(id, lon, lat, readString(buf, path)));
+            }
+
+            CompactGraph graph = new CompactGraph(ids, lons, lats, offsets, targets, highways,
+                    speeds);
+            return new GraphDB(graph, wayNames, locations);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated graph snapshot " + path + ".", e);
+        }
+    }
+
+    /** Reads a count of records of at least minBytes each, checking that they can fit. */
+    private static int count(ByteBuffer buf, String path, int minBytes) throws IOException {
+        int count = buf.getInt();
+        if (count < 0 || (long) count * minBytes > buf.remaining()) {
+            throw new IOException("Corrupt graph snapshot " + path + ": " + count
+                    + " records do not fit.");
+        }
+        return count;
+    }
+
+    /** Checks that offsets and targets describe an adjacency array of n vertices. */
+    private static void checkAdjacency(String path, int n, int m, int[] offsets, int[] targets)
+            throws IOException {
+        if (offsets[0] != 0 || offsets[n] != m) {
+            throw new IOException("Corrupt graph snapshot " + path + ": bad offsets.");
+        }
+        for (int v = 0; v < n; v++) {
+            if (offsets[v + 1] < offsets[v]) {
+                throw new IOException("Corrupt graph snapshot " + path + ": bad offsets.");
+            }
+        }
+        for (int target : targets) {
+            if (target < 0 || target >= n) {
+                throw new IOException("Corrupt graph snapshot " + path + ": edge target "
+                        + target + " out of range.");
+            }
+        }
+    }
+
+    private static void skip(ByteBuffer buf, long bytes) {
+        buf.position((int) (buf.position() + bytes));
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf, String path) throws IOException {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) {
+            throw new IOException("Corrupt graph snapshot " + path + ": string of " + length
+                    + " bytes does not fit.");
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
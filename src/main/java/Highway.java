@@ -0,0 +1,96 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The OSM highway types kept in the road graph. Every edge of a CompactGraph records its type
+ * as the byte code() of one of these constants, which is what routing profiles filter on.
+ *
+ * Only allow for non-service roads; this prevents going on pedestrian streets as much as
+ * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
+ * roads, but in practice we walk all over them with such impunity that we forget cars can
+ * actually drive on them.
+ *
+ * See <a href="http://wiki.openstreetmap.org/wiki/Key:highway">the highway tag</a>.
+ */
+enum Highway {
+    MOTORWAY(110),
+    TRUNK(90),
+    PRIMARY(65),
+    SECONDARY(55),
+    TERTIARY(45),
+    UNCLASSIFIED(40),
+    RESIDENTIAL(30),
+    LIVING_STREET(10),
+    MOTORWAY_LINK(60),
+    TRUNK_LINK(50),
+    PRIMARY_LINK(45),
+    SECONDARY_LINK(40),
+    TERTIARY_LINK(35);
+
+    private static final Highway[] VALUES = values();
+    private static final Map<String, Highway> BY_TAG = new HashMap<>();
+
+    static {
+        for (Highway h : VALUES) {
+            BY_TAG.put(h.tag, h);
+        }
+    }
+
+    /** The value of the OSM highway tag, such as "living_street". */
+    final String tag;
+    /** Assumed speed limit in km/h for roads of this type without a maxspeed tag. */
+    final int defaultSpeed;
+
+    Highway(int defaultSpeed) {
+        this.tag = name().toLowerCase();
+        this.defaultSpeed = defaultSpeed;
+    }
+
+    /** The compact code stored per edge. */
+    byte code() {
+        return (byte) ordinal();
+    }
+
+    /** The type with the given per-edge code. */
+    static Highway fromCode(int code) {
+        return VALUES[code];
+    }
+
+    /** The type for an OSM highway tag value, or null if such ways are not part of the graph. */
+    static Highway of(String tag) {
+        return tag == null ? null : BY_TAG.get(tag);
+    }
+
+    /**
+     * Parses an OSM maxspeed tag into km/h, for storing as an unsigned byte. Plain numbers are
+     * km/h, "mph" and "knots" are converted, and for lists such as "40;50" the first value is
+     * used. Returns 0 for missing or non-numeric values such as "none" or "signals".
+     */
+    static int parseMaxspeed(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int i = 0;
+        while (i < value.length() && value.charAt(i) == ' ') {
+            i++;
+        }
+        int start = i;
+        while (i < value.length() && Character.isDigit(value.charAt(i))) {
+            i++;
+        }
+        if (i == start || i - start > 4) {
+            return 0;
+        }
+        double speed = Integer.parseInt(value.substring(start, i));
+        int end = value.indexOf(';', i);
+        String unit = (end < 0 ? value.substring(i) : value.substring(i, end)).trim();
+        if (unit.equals("mph")) {
+            speed *= 1.609344;
+        } else if (unit.equals("knots")) {
+            speed *= 1.852;
+        } else if (!unit.isEmpty() && !unit.equals("km/h") && !unit.equals("kmh")) {
+            return 0;
+        }
+        return (int) Math.min(255, Math.round(speed));
+    }
+}
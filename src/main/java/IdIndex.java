@@ -0,0 +1,78 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table from OSM ids to dense vertex indices. Keys and values live in
+ * two parallel primitive arrays, so a lookup costs one multiply-shift hash and a short linear
+ * probe, with no boxing and no per-entry objects.
+ */
+class IdIndex {
+    private static final int EMPTY = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    /** Creates an index sized to hold expectedSize entries without resizing. */
+    IdIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, EMPTY);
+        mask = capacity - 1;
+    }
+
+    /** Returns the index stored for id, or -1 if id is not present. */
+    int get(long id) {
+        int slot = slot(id);
+        while (values[slot] != EMPTY) {
+            if (keys[slot] == id) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    /** Associates id with index, replacing any previous index. */
+    void put(long id, int index) {
+        if ((size + 1) * 2 > keys.length) {
+            resize();
+        }
+        int slot = slot(id);
+        while (values[slot] != EMPTY) {
+            if (keys[slot] == id) {
+                values[slot] = index;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = id;
+        values[slot] = index;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int slot(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(values, EMPTY);
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.Arrays;
+
+/**
+ * Indexed 4-ary min-heap of vertex indices keyed by primitive double priorities. Each vertex
+ * can be in the heap at most once; pushing a vertex that is already queued lowers its key in
+ * place instead of adding a duplicate. A 4-ary layout halves the tree height of a binary heap
+ * and keeps the children of a slot on one cache line.
+ *
+ * The heap is sized for a fixed number of vertices and is meant to be reused across searches:
+ * clear() only touches the slots that are still queued.
+ */
+class IndexedHeap {
+    private static final int ARITY = 4;
+
+    private final int[] heap;
+    private final double[] keys;
+    /** pos[v] is v's slot in heap, or -1 if v is not queued. */
+    private final int[] pos;
+    private int size;
+
+    IndexedHeap(int capacity) {
+        heap = new int[capacity];
+        keys = new double[capacity];
+        pos = new int[capacity];
+        Arrays.fill(pos, -1);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int v) {
+        return pos[v] >= 0;
+    }
+
+    /** Smallest key in the heap. Only valid when the heap is not empty. */
+    double peekKey() {
+        return keys[0];
+    }
+
+    /** Inserts v with the given key, or lowers v's key if it is already queued with a larger one. */
+    void push(int v, double key) {
+        int i = pos[v];
+        if (i < 0) {
+            i = size++;
+        } else if (key >= keys[i]) {
+            return;
+        }
+        siftUp(i, v, key);
+    }
+
+    /** Inserts v with the given key, or changes v's key if it is already queued. Unlike push,
+     *  this can raise a key as well as lower it. */
+    void update(int v, double key) {
+        int i = pos[v];
+        if (i < 0 || key < keys[i]) {
+            push(v, key);
+        } else {
+            siftDown(i, v, key);
+        }
+    }
+
+    /** Removes and returns the vertex with the smallest key. */
+    int poll() {
+        int top = heap[0];
+        pos[top] = -1;
+        size--;
+        if (size > 0) {
+            siftDown(0, heap[size], keys[size]);
+        }
+        return top;
+    }
+
+    /** Empties the heap in time proportional to the number of queued vertices. */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            pos[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    private void siftUp(int i, int v, double key) {
+        while (i > 0) {
+            int parent = (i - 1) / ARITY;
+            if (keys[parent] <= key) {
+                break;
+            }
+            place(i, heap[parent], keys[parent]);
+            i = parent;
+        }
+        place(i, v, key);
+    }
+
+    private void siftDown(int i, int v, double key) {
+        while (true) {
+            int first = i * ARITY + 1;
+            if (first >= size) {
+                break;
+            }
+            int last = Math.min(first + ARITY, size);
+            int best = first;
+            for (int c = first + 1; c < last; c++) {
+                if (keys[c] < keys[best]) {
+                    best = c;
+                }
+            }
+            if (keys[best] >= key) {
+                break;
+            }
+            place(i, heap[best], keys[best]);
+            i = best;
+        }
+        place(i, v, key);
+    }
+
+    private void place(int i, int v, double key) {
+        heap[i] = v;
+        keys[i] = key;
+        pos[v] = i;
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.Arrays;
+
+/**
+ * Result of a bounded one-to-all search: every vertex whose road distance from a start vertex
+ * is at most a given bound, the shortest-path tree connecting them, and the convex hull of
+ * their positions as a simple outline the frontend can draw over the map.
+ *
+ * The tree is stored as parallel arrays in the order vertices were settled, so ids[0] is the
+ * start vertex and every parent appears before its children.
+ */
+public class Isochrone {
+    /** The bound the search was run with, in the same units as GraphDB.distance. */
+    final double bound;
+    final long[] ids;
+    final double[] distances;
+    /** parents[i] is the id of the vertex before ids[i] on its shortest path, or -1 for the start. */
+    final long[] parents;
+    /** Convex hull as {lon, lat} points in counter-clockwise order. */
+    final double[][] hull;
+
+    Isochrone(double bound, long[] ids, double[] distances, long[] parents, double[][] hull) {
+        this.bound = bound;
+        this.ids = ids;
+        this.distances = distances;
+        this.parents = parents;
+        this.hull = hull;
+    }
+
+    /** Number of reachable vertices, including the start. */
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Convex hull of a set of points with Andrew's monotone chain, in O(n log n).
+     * @return The hull vertices as {lon, lat} points in counter-clockwise order, without
+     * repeating the first point.
+     */
+    static double[][] convexHull(double[] lons, double[] lats) {
+        int n = lons.length;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> lons[a] != lons[b]
+                ? Double.compare(lons[a], lons[b]) : Double.compare(lats[a], lats[b]));
+        if (n < 3) {
+            double[][] points = new double[n][];
+            for (int i = 0; i < n; i++) {
+                points[i] = new double[]{lons[order[i]], lats[order[i]]};
+            }
+            return points;
+        }
+
+        int[] hull = new int[2 * n];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            while (k >= 2 && cross(lons, lats, hull[k - 2], hull[k - 1], order[i]) <= 0) {
+                k--;
+            }
+            hull[k++] = order[i];
+        }
+        for (int i = n - 2, lower = k + 1; i >= 0; i--) {
+            while (k >= lower && cross(lons, lats, hull[k - 2], hull[k - 1], order[i]) <= 0) {
+                k--;
+            }
+            hull[k++] = order[i];
+        }
+        double[][] points = new double[k - 1][];
+        for (int i = 0; i < k - 1; i++) {
+            points[i] = new double[]{lons[hull[i]], lats[hull[i]]};
+        }
+        return points;
+    }
+
+    private static double cross(double[] lons, double[] lats, int o, int a, int b) {
+        return (lons[a] - lons[o]) * (lats[b] - lats[o]) - (lats[a] - lats[o]) * (lons[b] - lons[o]);
+    }
+}
@@ -0,0 +1,264 @@
+import java.util.function.IntPredicate;
+
+/**
+ * Static 2-d tree over the vertices of a CompactGraph, used to snap query points to the
+ * nearest vertex. The tree is implicit: the vertices are permuted so that the median of every
+ * range [lo, hi) sits at its midpoint, splitting on longitude at even depths and latitude at
+ * odd depths. No node objects are created, and nearest() allocates nothing.
+ *
+ * Distances are the same squared lon/lat Euclidean distance GraphDB.distance uses. Ties are
+ * broken towards the smaller vertex index, which matches a linear scan over the graph.
+ */
+class KdTree {
+    /** order[i] is the vertex stored at tree position i. */
+    private final int[] order;
+    /** Coordinates by tree position, so a query walks contiguous memory. */
+    private final double[] lons;
+    private final double[] lats;
+
+    KdTree(CompactGraph g) {
+        this(g, null);
+    }
+
+    /**
+     * Builds a tree over only the given vertices of g, or over all of them if vertices is
+     * null.
+     */
+    KdTree(CompactGraph g, int[] vertices) {
+        int n = vertices == null ? g.size() : vertices.length;
+        order = new int[n];
+        lons = new double[n];
+        lats = new double[n];
+        for (int i = 0; i < n; i++) {
+            int v = vertices == null ? i : vertices[i];
+            order[i] = v;
+            lons[i] = g.lons[v];
+            lats[i] = g.lats[v];
+        }
+        build(0, n, true);
+    }
+
+    /** Number of indexed vertices. */
+    int size() {
+        return order.length;
+    }
+
+    /** Returns the index of the vertex closest to (lon, lat), or -1 if the tree is empty. */
+    int nearest(double lon, double lat) {
+        if (order.length == 0) {
+            return -1;
+        }
+        return order[nearest(0, order.length, true, lon, lat, 0)];
+    }
+
+    /**
+     * Returns the index of the closest vertex to (lon, lat) that accept allows, or -1 if it
+     * allows none of them. Subtrees are pruned exactly as in nearest, so the cost grows only
+     * with the number of rejected vertices that are closer than the answer.
+     */
+    int nearest(double lon, double lat, IntPredicate accept) {
+        int best = nearest(0, order.length, true, lon, lat, accept, -1);
+        return best < 0 ? -1 : order[best];
+    }
+
+    /**
+     * Returns the indices of the k vertices closest to (lon, lat), nearest first. Fewer than
+     * k indices are returned if the tree holds fewer than k vertices.
+     */
+    int[] nearest(double lon, double lat, int k) {
+        k = Math.min(k, order.length);
+        int[] heap = new int[k];
+        double[] dist = new double[k];
+        int size = nearest(0, order.length, true, lon, lat, heap, dist, 0);
+        /* Pop the max-heap from the back so the result is ordered nearest first. */
+        int[] result = new int[size];
+        for (int i = size - 1; i >= 0; i--) {
+            result[i] = order[heap[0]];
+            heap[0] = heap[i];
+            dist[0] = dist[i];
+            siftDown(heap, dist, 0, i);
+        }
+        return result;
+    }
+
+    private void build(int lo, int hi, boolean splitLon) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, splitLon);
+        build(lo, mid, !splitLon);
+        build(mid + 1, hi, !splitLon);
+    }
+
+    /** Quickselect: rearranges [lo, hi] so position k holds its sorted value. */
+    private void select(int lo, int hi, int k, boolean splitLon) {
+        double[] keys = splitLon ? lons : lats;
+        while (hi > lo) {
+            double pivot = keys[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        int o = order[i];
+        order[i] = order[j];
+        order[j] = o;
+        double x = lons[i];
+        lons[i] = lons[j];
+        lons[j] = x;
+        double y = lats[i];
+        lats[i] = lats[j];
+        lats[j] = y;
+    }
+
+    private double dist2(int pos, double lon, double lat) {
+        double dLon = lons[pos] - lon;
+        double dLat = lats[pos] - lat;
+        return dLon * dLon + dLat * dLat;
+    }
+
+    /** True if tree position a is a strictly better answer than position b. */
+    private boolean closer(int a, double distA, int b, double distB) {
+        return distA < distB || (distA == distB && order[a] < order[b]);
+    }
+
+    /** Returns the tree position of the best match in [lo, hi), given the best so far. */
+    private int nearest(int lo, int hi, boolean splitLon, double lon, double lat, int best) {
+        if (lo >= hi) {
+            return best;
+        }
+        int mid = (lo + hi) >>> 1;
+        double d = dist2(mid, lon, lat);
+        if (closer(mid, d, best, dist2(best, lon, lat))) {
+            best = mid;
+        }
+        double diff = splitLon ? lon - lons[mid] : lat - lats[mid];
+        if (diff < 0) {
+            best = nearest(lo, mid, !splitLon, lon, lat, best);
+            if (diff * diff <= dist2(best, lon, lat)) {
+                best = nearest(mid + 1, hi, !splitLon, lon, lat, best);
+            }
+        } else {
+            best = nearest(mid + 1, hi, !splitLon, lon, lat, best);
+            if (diff * diff <= dist2(best, lon, lat)) {
+                best = nearest(lo, mid, !splitLon, lon, lat, best);
+            }
+        }
+        return best;
+    }
+
+    /** Like nearest above, but skips vertices accept rejects; best is -1 until one is found. */
+    private int nearest(int lo, int hi, boolean splitLon, double lon, double lat,
+                        IntPredicate accept, int best) {
+        if (lo >= hi) {
+            return best;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (accept.test(order[mid])
+                && (best < 0 || closer(mid, dist2(mid, lon, lat), best, dist2(best, lon, lat)))) {
+            best = mid;
+        }
+        double diff = splitLon ? lon - lons[mid] : lat - lats[mid];
+        int nearLo = diff < 0 ? lo : mid + 1;
+        int nearHi = diff < 0 ? mid : hi;
+        int farLo = diff < 0 ? mid + 1 : lo;
+        int farHi = diff < 0 ? hi : mid;
+        best = nearest(nearLo, nearHi, !splitLon, lon, lat, accept, best);
+        if (best < 0 || diff * diff <= dist2(best, lon, lat)) {
+            best = nearest(farLo, farHi, !splitLon, lon, lat, accept, best);
+        }
+        return best;
+    }
+
+    /**
+     * k-nearest search into a bounded max-heap of tree positions keyed by distance.
+     * Returns the new heap size.
+     */
+    private int nearest(int lo, int hi, boolean splitLon, double lon, double lat,
+                        int[] heap, double[] dist, int size) {
+        if (lo >= hi || heap.length == 0) {
+            return size;
+        }
+        int mid = (lo + hi) >>> 1;
+        double d = dist2(mid, lon, lat);
+        if (size < heap.length) {
+            heap[size] = mid;
+            dist[size] = d;
+            siftUp(heap, dist, size);
+            size++;
+        } else if (closer(mid, d, heap[0], dist[0])) {
+            heap[0] = mid;
+            dist[0] = d;
+            siftDown(heap, dist, 0, size);
+        }
+        double diff = splitLon ? lon - lons[mid] : lat - lats[mid];
+        int nearLo = diff < 0 ? lo : mid + 1;
+        int nearHi = diff < 0 ? mid : hi;
+        int farLo = diff < 0 ? mid + 1 : lo;
+        int farHi = diff < 0 ? hi : mid;
+        size = nearest(nearLo, nearHi, !splitLon, lon, lat, heap, dist, size);
+        if (size < heap.length || diff * diff <= dist[0]) {
+            size = nearest(farLo, farHi, !splitLon, lon, lat, heap, dist, size);
+        }
+        return size;
+    }
+
+    private void siftUp(int[] heap, double[] dist, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!closer(heap[parent], dist[parent], heap[i], dist[i])) {
+                return;
+            }
+            swapHeap(heap, dist, i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, double[] dist, int i, int size) {
+        while (true) {
+            int worst = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && closer(heap[worst], dist[worst], heap[left], dist[left])) {
+                worst = left;
+            }
+            if (right < size && closer(heap[worst], dist[worst], heap[right], dist[right])) {
+                worst = right;
+            }
+            if (worst == i) {
+                return;
+            }
+            swapHeap(heap, dist, i, worst);
+            i = worst;
+        }
+    }
+
+    private static void swapHeap(int[] heap, double[] dist, int i, int j) {
+        int h = heap[i];
+        heap[i] = heap[j];
+        heap[j] = h;
+        double d = dist[i];
+        dist[i] = dist[j];
+        dist[j] = d;
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.Arrays;
+
+/**
+ * Landmark distance tables for ALT (A*, Landmarks, Triangle inequality) routing. For a few
+ * landmark vertices L the shortest-path distance d(L, v) to every vertex v is precomputed.
+ * Since roads are two-way, the triangle inequality gives |d(L, t) - d(L, v)| <= d(v, t) for
+ * every landmark, and the largest of those bounds is a much tighter A* heuristic than the
+ * straight-line distance when the road network detours around hills or water.
+ *
+ * Distances are stored as floats in one vertex-major array, so looking up all landmarks for
+ * a vertex reads a single contiguous run. Building the tables costs one Dijkstra per
+ * landmark, so they are cheap to recompute whenever the graph changes.
+ */
+class Landmarks {
+    final CompactGraph graph;
+    /** Dense indices of the landmark vertices. */
+    final int[] landmarks;
+    /** distances[v * landmarks.length + i] is d(landmarks[i], v), or infinity if unreachable. */
+    private final float[] distances;
+    /** Amount subtracted from every bound to absorb float rounding, keeping it admissible. */
+    private final double slack;
+
+    /**
+     * Computes tables for the given landmark vertices.
+     * @param graph The graph to compute distances over.
+     * @param landmarks Dense indices of the landmark vertices.
+     */
+    Landmarks(CompactGraph graph, int[] landmarks) {
+        this.graph = graph;
+        this.landmarks = landmarks.clone();
+        int n = graph.size();
+        int k = landmarks.length;
+        distances = new float[n * k];
+        SearchContext ctx = new SearchContext(graph);
+        float max = 0;
+        for (int i = 0; i < k; i++) {
+            ctx.reset();
+            Router.shortestPathTree(ctx, landmarks[i], Double.POSITIVE_INFINITY);
+            for (int v = 0; v < n; v++) {
+                float d = (float) ctx.dist[v];
+                distances[v * k + i] = d;
+                if (d != Float.POSITIVE_INFINITY) {
+                    max = Math.max(max, d);
+                }
+            }
+        }
+        slack = 2 * Math.ulp(max);
+    }
+
+    /**
+     * Picks count landmarks by farthest-point selection and computes their tables. The first
+     * landmark is the vertex farthest from vertex 0; each further landmark is the vertex
+     * whose distance to its nearest existing landmark is largest, which spreads them around
+     * the edge of the map where they give the best bounds.
+     */
+    static Landmarks select(CompactGraph graph, int count) {
+        int n = graph.size();
+        count = Math.min(count, n);
+        int[] chosen = new int[count];
+        if (count == 0) {
+            return new Landmarks(graph, chosen);
+        }
+        SearchContext ctx = new SearchContext(graph);
+        double[] fromStart = new double[n];
+        Arrays.fill(fromStart, Double.POSITIVE_INFINITY);
+        int next = farthest(ctx, 0, fromStart);
+        double[] nearest = new double[n];
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+        for (int i = 0; i < count; i++) {
+            chosen[i] = next;
+            nearest[next] = 0;
+            next = farthest(ctx, next, nearest);
+        }
+        return new Landmarks(graph, chosen);
+    }
+
+    /**
+     * Lowers nearest[v] to d(from, v) for every vertex reachable from from, and returns the
+     * reachable vertex with the largest resulting value.
+     */
+    private static int farthest(SearchContext ctx, int from, double[] nearest) {
+        ctx.reset();
+        Router.shortestPathTree(ctx, from, Double.POSITIVE_INFINITY);
+        int best = from;
+        for (int i = 0; i < ctx.touchedCount(); i++) {
+            int v = ctx.touched(i);
+            nearest[v] = Math.min(nearest[v], ctx.dist[v]);
+            if (nearest[v] > nearest[best]) {
+                best = v;
+            }
+        }
+        return best;
+    }
+
+    /** Number of landmarks. */
+    int size() {
+        return landmarks.length;
+    }
+
+    /** A lower bound on the road distance between vertices v and t. */
+    double lowerBound(int v, int t) {
+        int k = landmarks.length;
+        int vi = v * k;
+        int ti = t * k;
+        double bound = 0;
+        for (int i = 0; i < k; i++) {
+            float dv = distances[vi + i];
+            float dt = distances[ti + i];
+            if (dv != Float.POSITIVE_INFINITY && dt != Float.POSITIVE_INFINITY) {
+                bound = Math.max(bound, Math.abs((double) dt - dv));
+            }
+        }
+        return Math.max(0, bound - slack);
+    }
+}
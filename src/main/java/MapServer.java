@@ -2,11 +2,30 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
 
 
@@ -35,6 +54,11 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    /** HTTP response while the data a request needs is still loading. */
+    private static final int UNAVAILABLE_RESPONSE = 503;
+    /** HTTP responses for a tile that does not exist and one the client already has. */
+    private static final int NOT_FOUND_RESPONSE = 404;
+    private static final int NOT_MODIFIED_RESPONSE = 304;
     /** Route stroke information: typically roads are not more than 5px wide. */
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
@@ -46,6 +70,19 @@ public class MapServer {
      * using custom region selection.
      **/
     private static final String OSM_DB_PATH = "berkeley.osm";
+    /** The same extract in OSM PBF form. Preferred over OSM_DB_PATH when present. */
+    private static final String OSM_PBF_PATH = "berkeley.osm.pbf";
+    /**
+     * Compiled graph snapshot produced by GraphCompiler. When present and newer than the OSM
+     * file it is loaded instead of re-parsing OSM_DB_PATH.
+     **/
+    private static final String GRAPH_SNAPSHOT_PATH = "berkeley.graph";
+    /**
+     * Contraction hierarchy written by GraphCompiler --ch. When present it is attached to the
+     * graph and becomes the default routing algorithm.
+     **/
+    private static final String CONTRACTION_HIERARCHY_PATH = GRAPH_SNAPSHOT_PATH
+            + GraphCompiler.HIERARCHY_SUFFIX;
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -56,6 +93,30 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_RASTER_REQUEST_PARAMS = {"ullat", "ullon", "lrlat",
         "lrlon", "w", "h"};
+    /**
+     * Optional raster request parameter that, when "true", answers with the coordinates and
+     * /tiles URLs of the tiles (see Rasterer.getTileRaster) instead of one stitched image,
+     * so that the client can fetch and cache each tile on its own.
+     **/
+    private static final String RASTER_TILES_PARAM = "tiles";
+    /**
+     * Optional raster request parameter that, when "png", answers with the stitched image
+     * itself as image/png, streamed to the client while it is encoded, instead of base64
+     * inside JSON. The fields of RASTER_HEADER_PARAMS travel as X-Raster-* headers; the tile
+     * names are left out, and can be had from the same request with tiles=true.
+     **/
+    private static final String RASTER_FORMAT_PARAM = "format";
+    private static final String[] RASTER_HEADER_PARAMS = {"raster_ul_lon", "raster_ul_lat",
+        "raster_lr_lon", "raster_lr_lat", "depth", "raster_width", "raster_height",
+        "query_success"};
+    /** HTTP response to a binary raster request whose box misses the map. */
+    private static final int NO_CONTENT_RESPONSE = 204;
+    /**
+     * System property giving how many seconds browsers may use a tile from /tiles without
+     * asking again. After that they revalidate it, and get a 304 if it has not changed.
+     **/
+    private static final String TILE_MAX_AGE_PROPERTY = "bearmaps.tiles.max_age";
+    private static final long DEFAULT_TILE_MAX_AGE_SECONDS = 3600;
     /**
      * Each route request to the server will have the following parameters
      * as keys in the params map.<br>
@@ -64,6 +125,85 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * Optional route request parameter naming the search algorithm, one of the
+     * Router.Algorithm constants (case-insensitive). Requests without it use the server
+     * default, which is read from the ROUTING_ALGORITHM_PROPERTY system property.
+     **/
+    private static final String ROUTE_ALGORITHM_PARAM = "algorithm";
+    private static final String ROUTING_ALGORITHM_PROPERTY = "bearmaps.routing.algorithm";
+    /**
+     * Optional route request parameter naming the RoutingProfile to route for
+     * (case-insensitive): distance, car, bike or foot. Requests without it get the shortest
+     * route by distance.
+     **/
+    private static final String ROUTE_PROFILE_PARAM = "profile";
+    /**
+     * System property giving the number of ALT landmarks to precompute for the A* heuristic.
+     * Landmarks are off unless it is set to a positive number.
+     **/
+    private static final String ROUTING_LANDMARKS_PROPERTY = "bearmaps.routing.landmarks";
+    /**
+     * System properties sizing the route cache: the most routes kept, and how many seconds
+     * a route stays cached. A size of zero turns the cache off.
+     **/
+    private static final String ROUTE_CACHE_SIZE_PROPERTY = "bearmaps.routing.cache.size";
+    private static final String ROUTE_CACHE_TTL_PROPERTY = "bearmaps.routing.cache.ttl";
+    private static final int DEFAULT_ROUTE_CACHE_SIZE = 1024;
+    private static final long DEFAULT_ROUTE_CACHE_TTL_SECONDS = 600;
+    /**
+     * System property giving the byte budget of the decoded tile cache. A decoded tile takes
+     * at most 192KB and usually 64KB or less, so the default holds a few thousand tiles, many
+     * screens' worth. Zero turns the cache off.
+     **/
+    private static final String TILE_CACHE_BYTES_PROPERTY = "bearmaps.tiles.cache.bytes";
+    private static final long DEFAULT_TILE_CACHE_BYTES = 128L << 20;
+    /**
+     * System property choosing what happens to road islands, the connected components other
+     * than the largest: "all" keeps them as they are (the default), "largest" drops them when
+     * the graph is loaded, and "snap" keeps them but starts and ends every route in the
+     * largest component.
+     **/
+    private static final String GRAPH_COMPONENTS_PROPERTY = "bearmaps.graph.components";
+    /**
+     * System property that, when "true", loads the graph from the OSM file with the data
+     * needed to apply OSM change files posted to /apply_changes. This skips the compiled
+     * snapshot and keeps every node position in memory, so it is off by default.
+     **/
+    private static final String GRAPH_CHANGES_PROPERTY = "bearmaps.graph.changes";
+    /**
+     * System property that, when "true", watches the working directory and reloads the map
+     * data once the OSM files, graph snapshot or contraction hierarchy have been rewritten and
+     * left alone for RELOAD_QUIET_MILLIS. Reloads can always be requested through /reload.
+     **/
+    private static final String RELOAD_WATCH_PROPERTY = "bearmaps.reload.watch";
+    private static final long RELOAD_QUIET_MILLIS = 2000;
+    /** Number of routes run on a newly loaded graph before it starts serving requests. */
+    private static final int WARM_UP_ROUTES = 8;
+
+    /**
+     * Each isochrone request to the server will have the following parameters.<br>
+     * lon -> start point longitude,<br> lat -> start point latitude,<br>
+     * distance -> largest road distance to include, in the units of GraphDB.distance.
+     **/
+    private static final String[] REQUIRED_ISOCHRONE_REQUEST_PARAMS = {"lon", "lat",
+        "distance"};
+
+    /**
+     * Each matrix request to the server will have the following parameters, each a list of
+     * points written as "lon,lat" pairs separated by semicolons.<br>
+     * sources -> origin points,<br> targets -> destination points.
+     **/
+    private static final String[] REQUIRED_MATRIX_REQUEST_PARAMS = {"sources", "targets"};
+
+    /**
+     * Each road override request to the server will have the following parameter.<br>
+     * segments -> road segments written as "from,to" pairs of OSM node ids separated by
+     * semicolons; each pair must be joined by a road.<br>
+     * It may also give factor -> "closed" (the default) to close the segments, a number
+     * above 1 to multiply their cost, or 1 to restore them.
+     **/
+    private static final String[] REQUIRED_OVERRIDE_REQUEST_PARAMS = {"segments"};
 
     /**
      * The result of rastering must be a map containing all of the
@@ -72,9 +212,121 @@ public class MapServer {
     private static final String[] REQUIRED_RASTER_RESULT_PARAMS = {"render_grid", "raster_ul_lon",
         "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
-    private static Rasterer rasterer;
-    private static GraphDB graph;
-    private static LinkedList<Long> route = new LinkedList<>();
+    /**
+     * The graph and rasterer requests are answered from. They are replaced together when the
+     * data is reloaded or changes are applied, so each request reads this once and works on
+     * one consistent version while requests already running finish on the previous one.
+     * While the server starts, parts are published as they become ready: the rasterer, then
+     * the graph for location search, then the same graph once it is prepared for routing.
+     */
+    private static final class Dataset {
+        static final Dataset EMPTY = new Dataset(null, false, null, Collections.emptyList());
+
+        /** The graph, or null while it is being read. */
+        final GraphDB graph;
+        /** Whether graph has been prepared for routing. */
+        final boolean routable;
+        /** The rasterer, or null while it is being built. */
+        final Rasterer rasterer;
+        /** The route drawn on the map, as vertex ids of graph. */
+        final List<Long> route;
+
+        Dataset(GraphDB graph, boolean routable, Rasterer rasterer, List<Long> route) {
+            this.graph = graph;
+            this.routable = routable;
+            this.rasterer = rasterer;
+            this.route = route;
+        }
+
+        /** This dataset with a new graph, which starts out without a route. */
+        Dataset withGraph(GraphDB g, boolean isRoutable) {
+            return new Dataset(g, isRoutable, rasterer, Collections.emptyList());
+        }
+
+        Dataset withRasterer(Rasterer r) {
+            return new Dataset(graph, routable, r, route);
+        }
+
+        Dataset withRoute(List<Long> r) {
+            return new Dataset(graph, routable, rasterer, r);
+        }
+    }
+
+    /**
+     * Load progress of one part of the server, reported by /health: when it started and
+     * finished, what it is doing meanwhile, and why it failed if it did.
+     */
+    private static final class Component {
+        final String name;
+        private volatile String stage;
+        private volatile long startNanos;
+        private volatile long endNanos;
+        private volatile Throwable failure;
+
+        Component(String name) {
+            this.name = name;
+        }
+
+        /** Marks the component as loading, at the given stage. */
+        void begin(String nextStage) {
+            if (startNanos == 0) {
+                startNanos = System.nanoTime();
+            }
+            stage = nextStage;
+        }
+
+        void finish() {
+            endNanos = System.nanoTime();
+            stage = null;
+        }
+
+        void fail(Throwable cause) {
+            failure = cause;
+            endNanos = System.nanoTime();
+        }
+
+        boolean ready() {
+            return endNanos != 0 && failure == null;
+        }
+
+        /** The progress of this component for JSON. */
+        Map<String, Object> describe() {
+            Map<String, Object> result = new HashMap<>();
+            long start = startNanos;
+            long end = endNanos;
+            String current = stage;
+            if (failure != null) {
+                result.put("status", "failed");
+                result.put("error", String.valueOf(failure.getMessage()));
+            } else if (end != 0) {
+                result.put("status", "ready");
+            } else if (start == 0) {
+                result.put("status", "pending");
+            } else {
+                result.put("status", "loading");
+                if (current != null) {
+                    result.put("stage", current);
+                }
+            }
+            if (start != 0) {
+                result.put("millis", ((end != 0 ? end : System.nanoTime()) - start) / 1000000);
+            }
+            return result;
+        }
+    }
+
+    private static final AtomicReference<Dataset> dataset =
+            new AtomicReference<>(Dataset.EMPTY);
+    /** Serialises reloads, change application and road overrides, which replace the dataset
+     * or its overlay. */
+    private static final Object DATA_LOCK = new Object();
+    /** Load progress of the map tiles, the location search index and the routing graph.
+     * startLoading replaces them while request threads read them. */
+    private static volatile Component tiles = new Component("tiles");
+    private static volatile Component search = new Component("search");
+    private static volatile Component routing = new Component("routing");
+    /** Decoded tiles, shared by every dataset so that reloads keep it warm. */
+    private static volatile TileCache tileCache;
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -84,19 +336,298 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
-        rasterer = new Rasterer(IMG_ROOT);
+        for (Thread loader : startLoading()) {
+            try {
+                loader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        for (Component c : new Component[]{tiles, search, routing}) {
+            if (c.failure != null) {
+                throw new IllegalStateException("Could not load " + c.name + ".", c.failure);
+            }
+        }
+    }
+
+    /**
+     * Starts loading the map data on two threads and returns them without waiting. One builds
+     * the rasterer, so map tiles can be served right away. The other reads the graph, which
+     * carries the location search index, publishes it for search, and then prepares it for
+     * routing. Requests for a part that is not ready yet are answered with
+     * UNAVAILABLE_RESPONSE.
+     */
+    private static Thread[] startLoading() {
+        tiles = new Component("tiles");
+        search = new Component("search");
+        routing = new Component("routing");
+        dataset.set(Dataset.EMPTY);
+        Thread tileLoader = new Thread(() -> {
+            tiles.begin("rasterer");
+            try {
+                tileCache = new TileCache(Long.getLong(TILE_CACHE_BYTES_PROPERTY,
+                        DEFAULT_TILE_CACHE_BYTES));
+                Rasterer r = loadRasterer();
+                dataset.updateAndGet(d -> d.withRasterer(r));
+                tiles.finish();
+            } catch (RuntimeException | Error e) {
+                e.printStackTrace();
+                tiles.fail(e);
+            }
+        }, "map-tile-loader");
+        /* Holding DATA_LOCK makes reloads and changes wait for the first graph. */
+        Thread graphLoader = new Thread(() -> {
+            synchronized (DATA_LOCK) {
+                Component current = search;
+                try {
+                    search.begin("reading");
+                    GraphDB loaded = loadGraph();
+                    dataset.updateAndGet(d -> d.withGraph(loaded, false));
+                    search.finish();
+                    current = routing;
+                    routing.begin("components and landmarks");
+                    prepareGraph(loaded);
+                    routing.begin("contraction hierarchy");
+                    attachHierarchy(loaded);
+                    routing.begin("warm-up");
+                    warmUp(loaded);
+                    install(loaded, null);
+                    routing.finish();
+                } catch (RuntimeException | Error e) {
+                    e.printStackTrace();
+                    current.fail(e);
+                    if (current != routing) {
+                        routing.fail(e);
+                    }
+                }
+            }
+        }, "map-graph-loader");
+        tileLoader.start();
+        graphLoader.start();
+        return new Thread[]{tileLoader, graphLoader};
+    }
+
+    /**
+     * Loads the map data from disk again and switches requests over to it once it is ready.
+     * The old data keeps serving while the new graph, its indices and the rasterer are built
+     * and warmed up. Cached tiles are kept unless their files have changed. Changes applied through /apply_changes are discarded, as are road
+     * overrides, since they refer to the old graph.
+     * @return The new graph.
+     */
+    static GraphDB reload() {
+        synchronized (DATA_LOCK) {
+            GraphDB loaded = loadGraph();
+            prepareGraph(loaded);
+            attachHierarchy(loaded);
+            warmUp(loaded);
+            TileCache cache = tileCache;
+            if (cache != null) {
+                cache.invalidateChanged();
+            }
+            install(loaded, loadRasterer());
+            return loaded;
+        }
+    }
+
+    /** Attaches the contraction hierarchy on disk to g, if there is one. */
+    private static void attachHierarchy(GraphDB g) {
+        if (new File(CONTRACTION_HIERARCHY_PATH).exists()) {
+            try {
+                g.setContractionHierarchy(
+                        ContractionHierarchy.read(CONTRACTION_HIERARCHY_PATH, g.graph()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Makes g and r the data requests are answered from, choosing the default routing
+     * algorithm for g. The current route belongs to the old graph and is dropped with it. A
+     * null r keeps the current rasterer.
+     */
+    private static void install(GraphDB g, Rasterer r) {
+        String algorithm = System.getProperty(ROUTING_ALGORITHM_PROPERTY);
+        if (algorithm != null) {
+            Router.setDefaultAlgorithm(Router.Algorithm.valueOf(algorithm.toUpperCase()));
+        } else {
+            Router.setDefaultAlgorithm(g.contractionHierarchy() != null
+                    ? Router.Algorithm.CONTRACTION_HIERARCHY : Router.Algorithm.ASTAR);
+        }
+        dataset.updateAndGet(d -> {
+            Dataset next = d.withGraph(g, true);
+            return r != null ? next.withRasterer(r) : next;
+        });
+    }
+
+    /**
+     * Runs a few routes across g before it serves requests, so that snapshot pages are mapped
+     * in and the search code is compiled. The route cache is detached meanwhile, leaving its
+     * contents and statistics to real requests.
+     */
+    private static void warmUp(GraphDB g) {
+        CompactGraph graph = g.graph();
+        RouteCache cache = g.routeCache();
+        g.setRouteCache(null);
+        try {
+            for (int i = 0; i < WARM_UP_ROUTES && graph.size() > 0; i++) {
+                int s = (int) ((long) graph.size() * i / WARM_UP_ROUTES);
+                int t = graph.size() - 1 - s;
+                Router.shortestPath(g, graph.lons[s], graph.lats[s], graph.lons[t],
+                        graph.lats[t]);
+            }
+        } finally {
+            g.setRouteCache(cache);
+        }
+    }
+
+    /** Builds the rasterer and runs one raster query for the whole map on it. */
+    private static Rasterer loadRasterer() {
+        Rasterer r = new Rasterer(IMG_ROOT);
+        Map<String, Double> params = new HashMap<>();
+        params.put("ullon", ROOT_ULLON);
+        params.put("ullat", ROOT_ULLAT);
+        params.put("lrlon", ROOT_LRLON);
+        params.put("lrlat", ROOT_LRLAT);
+        params.put("w", (double) TILE_SIZE);
+        params.put("h", (double) TILE_SIZE);
+        r.getMapRaster(params);
+        return r;
+    }
+
+    /**
+     * Starts a daemon thread that calls reload whenever one of the data files in the working
+     * directory is created or modified and then left alone for RELOAD_QUIET_MILLIS, so that a
+     * file still being written is not read half-way.
+     */
+    private static void watchForReloads() {
+        Set<String> watched = new HashSet<>(Arrays.asList(OSM_DB_PATH, OSM_PBF_PATH,
+                GRAPH_SNAPSHOT_PATH, CONTRACTION_HIERARCHY_PATH));
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            Paths.get("").toAbsolutePath().register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    boolean changed = false;
+                    WatchKey key = watcher.take();
+                    /* Keep collecting events until the directory has been quiet for a while. */
+                    while (key != null) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            Object context = event.context();
+                            if (context instanceof Path
+                                    && watched.contains(context.toString())) {
+                                changed = true;
+                            }
+                        }
+                        key.reset();
+                        key = watcher.poll(RELOAD_QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                    if (changed) {
+                        try {
+                            reload();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "map-data-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Applies the configured component handling, landmarks and route cache to a newly loaded
+     * or changed graph, before it starts serving requests.
+     */
+    private static void prepareGraph(GraphDB g) {
+        String components = System.getProperty(GRAPH_COMPONENTS_PROPERTY, "all");
+        if (components.equals("largest")) {
+            g.keepLargestComponent();
+        } else if (components.equals("snap")) {
+            g.setSnapToLargestComponent(true);
+        } else if (!components.equals("all")) {
+            throw new IllegalArgumentException("Unknown " + GRAPH_COMPONENTS_PROPERTY
+                    + " value " + components + ".");
+        }
+        g.computeLandmarks(Integer.getInteger(ROUTING_LANDMARKS_PROPERTY, 0));
+        int routeCacheSize = Integer.getInteger(ROUTE_CACHE_SIZE_PROPERTY,
+                DEFAULT_ROUTE_CACHE_SIZE);
+        if (routeCacheSize > 0) {
+            g.setRouteCache(new RouteCache(routeCacheSize,
+                    Long.getLong(ROUTE_CACHE_TTL_PROPERTY, DEFAULT_ROUTE_CACHE_TTL_SECONDS)));
+        }
+    }
+
+    /**
+     * Applies an OSM change file to the current graph and switches requests over to the
+     * result. Requests already running finish on the old graph. The contraction hierarchy on
+     * disk describes the original graph, so changed graphs route without one. The current
+     * route is dropped with the old graph, since it may pass through roads the change
+     * removed.
+     * @return The new graph.
+     */
+    static GraphDB applyChanges(OsmChange change) {
+        synchronized (DATA_LOCK) {
+            Dataset current = dataset.get();
+            if (!current.routable) {
+                throw new IllegalStateException("The graph failed to load.");
+            }
+            GraphDB next = current.graph.applyChanges(change);
+            prepareGraph(next);
+            dataset.updateAndGet(d -> d.withGraph(next, true));
+            return next;
+        }
+    }
+
+    /**
+     * Opens the compiled graph snapshot if there is one, falling back to parsing the OSM file.
+     * A snapshot older than the OSM file is skipped, so a reload after editing the extract
+     * serves the edit rather than the old snapshot. When change files are enabled the OSM
+     * file is always parsed, since snapshots do not hold the data changes are applied to.
+     */
+    private static GraphDB loadGraph() {
+        String path = new File(OSM_PBF_PATH).exists() ? OSM_PBF_PATH : OSM_DB_PATH;
+        if (Boolean.getBoolean(GRAPH_CHANGES_PROPERTY)) {
+            return GraphDB.openForChanges(path);
+        }
+        if (new File(GRAPH_SNAPSHOT_PATH).exists()
+                && !GraphStore.isStale(GRAPH_SNAPSHOT_PATH, path)) {
+            try {
+                return GraphDB.fromSnapshot(GRAPH_SNAPSHOT_PATH);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return new GraphDB(path);
     }
 
     public static void main(String[] args) {
-        initialize();
         staticFileLocation("/page");
-        /* Allow for all origin requests (since this is not an authenticated server, we do not
-         * care about CSRF).  */
+        /* Load in the background, so the server answers /health while the data loads. */
+        startLoading();
+        if (Boolean.getBoolean(RELOAD_WATCH_PROPERTY)) {
+            watchForReloads();
+        }
+        /* Allow for all origin requests to read the map (since this is not an authenticated
+         * server, we do not care about CSRF there). The POST endpoints change what every
+         * client sees, so other origins do not get to read their results. */
         before((request, response) -> {
-            response.header("Access-Control-Allow-Origin", "*");
-            response.header("Access-Control-Request-Method", "*");
-            response.header("Access-Control-Allow-Headers", "*");
+            if (!request.requestMethod().equals("POST")) {
+                response.header("Access-Control-Allow-Origin", "*");
+                response.header("Access-Control-Request-Method", "*");
+                response.header("Access-Control-Allow-Headers", "*");
+            }
         });
 
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
@@ -104,15 +635,28 @@ public class MapServer {
         get("/raster", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            Dataset d = dataset.get();
+            if (d.rasterer == null) {
+                halt(UNAVAILABLE_RESPONSE, "Map tiles are still loading.");
+            }
+            if ("true".equals(req.queryParams(RASTER_TILES_PARAM))) {
+                Gson gson = new Gson();
+                return gson.toJson(getTileUrls(d.rasterer.getTileRaster(params)));
+            }
             /* getMapRaster() does almost all the work for this API call */
-            Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
+            Map<String, Object> rasteredImgParams = d.rasterer.getMapRaster(params);
 
             boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
 
+            if ("png".equals(req.queryParams(RASTER_FORMAT_PARAM))) {
+                sendRaster(rasteredImgParams, rasterSuccess, d, res);
+                return "";
+            }
+
             if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
+                /* The png image is written to the ByteArrayOutputStream */
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                writeImagesToOutputStream(rasteredImgParams, d, os);
                 String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
                 rasteredImgParams.put("b64_encoded_image_data", encodedImage);
             }
@@ -122,16 +666,232 @@ public class MapServer {
             return gson.toJson(rasteredImgParams);
         });
 
+        /* Define the endpoint for single tiles, addressed as /tiles/depth/x/y.png with x and y
+         * counted from the upper left of the map. Tiles are sent straight from disk with
+         * validators, so browsers can cache them and revalidate with conditional GETs. */
+        get("/tiles/:depth/:x/:y", (req, res) -> {
+            Dataset d = dataset.get();
+            if (d.rasterer == null) {
+                halt(UNAVAILABLE_RESPONSE, "Map tiles are still loading.");
+            }
+            String y = req.params(":y");
+            if (y.endsWith(Rasterer.IMGFORMAT)) {
+                y = y.substring(0, y.length() - Rasterer.IMGFORMAT.length());
+            }
+            int[] tile = new int[3];
+            try {
+                tile[0] = Integer.parseInt(req.params(":depth"));
+                tile[1] = Integer.parseInt(req.params(":x"));
+                tile[2] = Integer.parseInt(y);
+            } catch (NumberFormatException e) {
+                halt(NOT_FOUND_RESPONSE, "No such tile.");
+            }
+            if (!Rasterer.hasTile(tile[0], tile[1], tile[2])) {
+                halt(NOT_FOUND_RESPONSE, "No such tile.");
+            }
+            sendTile(d.rasterer.tileName(tile[0], tile[1], tile[2]), req.raw(), res);
+            return "";
+        });
+
         /* Define the routing endpoint for HTTP GET requests. */
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
+            String algorithm = req.queryParams(ROUTE_ALGORITHM_PARAM);
+            String profile = req.queryParams(ROUTE_PROFILE_PARAM);
+            GraphDB graph = routingGraph();
+            List<Long> route;
+            if (algorithm == null && profile == null) {
+                route = Router.shortestPath(graph, params.get("start_lon"),
+                        params.get("start_lat"), params.get("end_lon"), params.get("end_lat"));
+            } else {
+                route = Router.shortestPath(graph, params.get("start_lon"),
+                        params.get("start_lat"), params.get("end_lon"), params.get("end_lat"),
+                        algorithm == null ? Router.defaultAlgorithm() : getAlgorithm(algorithm),
+                        profile == null ? RoutingProfile.DISTANCE : getProfile(profile));
+            }
             //route = findAndSetRoute(params);
+            /* A route found on a graph that was replaced meanwhile is not drawn. */
+            dataset.updateAndGet(d -> d.graph == graph ? d.withRoute(route) : d);
             return !route.isEmpty();
         });
 
+        /* Define the many-to-many distance matrix endpoint. Unlike /route, this does not
+         * change the route drawn on the map. */
+        get("/matrix", (req, res) -> {
+            for (String param : REQUIRED_MATRIX_REQUEST_PARAMS) {
+                if (req.queryParams(param) == null) {
+                    halt(HALT_RESPONSE, "Request failed - parameters missing.");
+                }
+            }
+            double[][] sources = getPoints(req.queryParams("sources"));
+            double[][] targets = getPoints(req.queryParams("targets"));
+            double[][] distances = Router.distanceMatrix(routingGraph(), sources, targets);
+            /* Unreachable pairs are reported as null, since JSON has no infinity. */
+            Double[][] table = new Double[distances.length][];
+            for (int i = 0; i < distances.length; i++) {
+                table[i] = new Double[distances[i].length];
+                for (int j = 0; j < distances[i].length; j++) {
+                    double d = distances[i][j];
+                    table[i][j] = d == Double.POSITIVE_INFINITY ? null : d;
+                }
+            }
+            Map<String, Object> result = new HashMap<>();
+            result.put("distances", table);
+            Gson gson = new Gson();
+            return gson.toJson(result);
+        });
+
+        /* Define the reachability endpoint: the shortest-path tree of everything within the
+         * given distance of a point, and its outline. */
+        get("/isochrone", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            Isochrone isochrone = Router.reachable(routingGraph(), params.get("lon"),
+                    params.get("lat"), params.get("distance"));
+            Map<String, Object> result = new HashMap<>();
+            result.put("ids", isochrone.ids);
+            result.put("distances", isochrone.distances);
+            result.put("parents", isochrone.parents);
+            result.put("hull", isochrone.hull);
+            Gson gson = new Gson();
+            return gson.toJson(result);
+        });
+
+        /* Define the API endpoint for route cache statistics. */
+        get("/route_stats", (req, res) -> {
+            Map<String, Object> stats = new HashMap<>();
+            RouteCache cache = routingGraph().routeCache();
+            if (cache != null) {
+                stats.put("size", cache.size());
+                stats.put("hits", cache.hits());
+                stats.put("misses", cache.misses());
+                stats.put("evictions", cache.evictions());
+            }
+            stats.put("enabled", cache != null);
+            Gson gson = new Gson();
+            return gson.toJson(stats);
+        });
+
+        /* Define the API endpoint for decoded tile cache statistics. */
+        get("/tile_stats", (req, res) -> {
+            Map<String, Object> stats = new HashMap<>();
+            TileCache cache = tileCache;
+            if (cache != null) {
+                long lookups = cache.hits() + cache.misses();
+                stats.put("size", cache.size());
+                stats.put("bytes", cache.bytes());
+                stats.put("max_bytes", cache.maxBytes());
+                stats.put("hits", cache.hits());
+                stats.put("misses", cache.misses());
+                stats.put("evictions", cache.evictions());
+                stats.put("hit_rate", lookups == 0 ? 0 : (double) cache.hits() / lookups);
+            }
+            Gson gson = new Gson();
+            return gson.toJson(stats);
+        });
+
+        /* Define the road override endpoints. Changes take effect for the next route
+         * request, without reloading the graph. Changing overrides takes a POST, with the
+         * parameters in the query string or the form body. */
+        post("/override_roads", (req, res) -> {
+            for (String param : REQUIRED_OVERRIDE_REQUEST_PARAMS) {
+                if (req.queryParams(param) == null) {
+                    halt(HALT_RESPONSE, "Request failed - parameters missing.");
+                }
+            }
+            long[][] segments = getSegments(req.queryParams("segments"));
+            double factor = getFactor(req.queryParams("factor"));
+            routingGraph();
+            /* Holding DATA_LOCK keeps an override from landing on a graph that a change is
+             * replacing after its overrides have been carried over. */
+            synchronized (DATA_LOCK) {
+                GraphDB g = routingGraph();
+                EdgeOverlay overlay = null;
+                try {
+                    overlay = g.overrideSegments(segments[0], segments[1], factor);
+                } catch (IllegalArgumentException e) {
+                    halt(HALT_RESPONSE, e.getMessage());
+                }
+                Gson gson = new Gson();
+                return gson.toJson(getOverrides(g, overlay));
+            }
+        });
+
+        get("/road_overrides", (req, res) -> {
+            GraphDB g = routingGraph();
+            Gson gson = new Gson();
+            return gson.toJson(getOverrides(g, g.overlay()));
+        });
+
+        post("/clear_road_overrides", (req, res) -> {
+            routingGraph();
+            synchronized (DATA_LOCK) {
+                GraphDB g = routingGraph();
+                Gson gson = new Gson();
+                return gson.toJson(getOverrides(g, g.clearOverrides()));
+            }
+        });
+
+        /* Define the endpoint for applying an OSM change file, sent as the request body. The
+         * new graph is built while the old one keeps serving, then replaces it. */
+        post("/apply_changes", (req, res) -> {
+            OsmChange change = null;
+            try {
+                change = OsmChange.read(new ByteArrayInputStream(req.bodyAsBytes()));
+            } catch (XMLStreamException e) {
+                halt(HALT_RESPONSE, "Invalid change file - " + e.getMessage());
+            }
+            GraphDB next = null;
+            try {
+                next = applyChanges(change);
+            } catch (IllegalStateException e) {
+                halt(HALT_RESPONSE, e.getMessage());
+            }
+            Map<String, Object> result = new HashMap<>();
+            result.put("elements", change.elements().size());
+            result.put("vertices", next.graph().size());
+            result.put("edges", next.graph().edgeCount());
+            Gson gson = new Gson();
+            return gson.toJson(result);
+        });
+
+        /* Define the endpoint for reloading the map data from disk. The new data is built
+         * while the old keeps serving, then replaces it. */
+        post("/reload", (req, res) -> {
+            long start = System.nanoTime();
+            GraphDB next = null;
+            try {
+                next = reload();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                halt(HALT_RESPONSE, "Reload failed - " + e.getMessage());
+            }
+            Map<String, Object> result = new HashMap<>();
+            result.put("vertices", next.graph().size());
+            result.put("edges", next.graph().edgeCount());
+            result.put("millis", (System.nanoTime() - start) / 1000000);
+            Gson gson = new Gson();
+            return gson.toJson(result);
+        });
+
+        /* Define the readiness endpoint: the load progress of each part of the server. It
+         * answers UNAVAILABLE_RESPONSE until everything is ready. */
+        get("/health", (req, res) -> {
+            Map<String, Object> components = new HashMap<>();
+            boolean ready = true;
+            for (Component c : new Component[]{tiles, search, routing}) {
+                components.put(c.name, c.describe());
+                ready &= c.ready();
+            }
+            Map<String, Object> result = new HashMap<>();
+            result.put("ready", ready);
+            result.put("components", components);
+            res.status(ready ? 200 : UNAVAILABLE_RESPONSE);
+            Gson gson = new Gson();
+            return gson.toJson(result);
+        });
+
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
             clearRoute();
@@ -161,6 +921,110 @@ public class MapServer {
         });
     }
 
+    /** The graph to route on, halting the request if it is not ready yet. */
+    private static GraphDB routingGraph() {
+        Dataset d = dataset.get();
+        if (!d.routable) {
+            halt(UNAVAILABLE_RESPONSE, "The routing graph is still loading.");
+        }
+        return d.graph;
+    }
+
+    /** The graph whose location index to search, halting the request if it is not read yet. */
+    private static GraphDB searchGraph() {
+        Dataset d = dataset.get();
+        if (d.graph == null) {
+            halt(UNAVAILABLE_RESPONSE, "The location index is still loading.");
+        }
+        return d.graph;
+    }
+
+    /**
+     * Adds to a Rasterer.getTileRaster result "tile_urls" -> String[][], the /tiles URL of
+     * every tile in the grid, row by row.
+     */
+    private static Map<String, Object> getTileUrls(Map<String, Object> tileRaster) {
+        if (Boolean.TRUE.equals(tileRaster.get("query_success"))) {
+            int depth = (int) tileRaster.get("depth");
+            int x0 = (int) tileRaster.get("tile_x");
+            int y0 = (int) tileRaster.get("tile_y");
+            String[][] urls = new String[(int) tileRaster.get("tile_rows")]
+                    [(int) tileRaster.get("tile_columns")];
+            for (int r = 0; r < urls.length; r++) {
+                for (int c = 0; c < urls[r].length; c++) {
+                    urls[r][c] = "/tiles/" + depth + "/" + (x0 + c) + "/" + (y0 + r)
+                            + Rasterer.IMGFORMAT;
+                }
+            }
+            tileRaster.put("tile_urls", urls);
+        }
+        return tileRaster;
+    }
+
+    /**
+     * Answers a tile request with the file at path. The ETag is made of the file's length and
+     * modification time, so it changes whenever the tile is rewritten. A request whose
+     * If-None-Match names that tag, or failing that whose If-Modified-Since is not older than
+     * the file, gets NOT_MODIFIED_RESPONSE and no body. Otherwise the file is streamed from
+     * its channel to the response. This is not zero-copy: the servlet stream is not a file or
+     * socket channel, so transferTo copies through a small buffer and the servlet's own
+     * output buffer. It does avoid reading whole tiles into memory or decoding them.
+     */
+    private static void sendTile(String path, HttpServletRequest req, spark.Response res)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.READ)) {
+            long length = channel.size();
+            long lastModified = new File(path).lastModified();
+            String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified)
+                    + "\"";
+            HttpServletResponse raw = res.raw();
+            raw.setHeader("ETag", etag);
+            raw.setDateHeader("Last-Modified", lastModified);
+            raw.setHeader("Cache-Control", "public, max-age="
+                    + Long.getLong(TILE_MAX_AGE_PROPERTY, DEFAULT_TILE_MAX_AGE_SECONDS));
+            if (notModified(req, etag, lastModified)) {
+                res.status(NOT_MODIFIED_RESPONSE);
+                return;
+            }
+            raw.setContentType("image/png");
+            raw.setContentLengthLong(length);
+            WritableByteChannel out = Channels.newChannel(raw.getOutputStream());
+            for (long position = 0; position < length; ) {
+                position += channel.transferTo(position, length - position, out);
+            }
+        } catch (NoSuchFileException e) {
+            halt(NOT_FOUND_RESPONSE, "No such tile.");
+        }
+    }
+
+    /**
+     * Whether the client already has the version of a tile with the given ETag and
+     * modification time, judged by If-None-Match if it is present and else by
+     * If-Modified-Since, which has a resolution of one second.
+     */
+    private static boolean notModified(HttpServletRequest req, String etag, long lastModified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        try {
+            long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+            return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
     /**
      * Validate & return a parameter map of the required request parameters.
      * Requires that all input parameters are doubles.
@@ -187,31 +1051,183 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Parses a list of points written as "lon,lat" pairs separated by semicolons, halting the
+     * request if it is malformed.
+     * @return The points as {lon, lat} pairs.
+     */
+    private static double[][] getPoints(String param) {
+        String[] pairs = param.split(";");
+        double[][] points = new double[pairs.length][];
+        for (int i = 0; i < pairs.length; i++) {
+            String[] coords = pairs[i].split(",");
+            if (coords.length != 2) {
+                halt(HALT_RESPONSE, "Incorrect parameters - points must be lon,lat pairs.");
+            }
+            try {
+                points[i] = new double[]{Double.parseDouble(coords[0].trim()),
+                    Double.parseDouble(coords[1].trim())};
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Parses "from,to" pairs of OSM ids separated by semicolons into parallel from and to
+     * arrays, halting the request if they are malformed.
+     */
+    private static long[][] getSegments(String param) {
+        String[] pairs = param.split(";");
+        long[][] segments = new long[2][pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+            String[] ids = pairs[i].split(",");
+            if (ids.length != 2) {
+                halt(HALT_RESPONSE, "Incorrect parameters - segments must be from,to pairs.");
+            }
+            try {
+                segments[0][i] = Long.parseLong(ids[0].trim());
+                segments[1][i] = Long.parseLong(ids[1].trim());
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                halt(HALT_RESPONSE, "Incorrect parameters - provide node ids.");
+            }
+        }
+        return segments;
+    }
+
+    /** Parses an override factor, where null or "closed" mean positive infinity. */
+    private static double getFactor(String param) {
+        if (param == null || param.equalsIgnoreCase("closed")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        try {
+            return Double.parseDouble(param);
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - factor must be a number or closed.");
+            return 0;
+        }
+    }
+
+    /**
+     * Describes an overlay of graphDB for JSON: its version, and per overridden adjacency entry the OSM
+     * ids it runs between and whether it is closed or else its factor.
+     */
+    private static Map<String, Object> getOverrides(GraphDB graphDB, EdgeOverlay overlay) {
+        CompactGraph g = graphDB.graph();
+        List<Map<String, Object>> overrides = new ArrayList<>();
+        for (int i = 0; i < overlay.size(); i++) {
+            int e = overlay.edge(i);
+            Map<String, Object> override = new HashMap<>();
+            override.put("from", g.ids[g.edgeSource(e)]);
+            override.put("to", g.ids[g.targets[e]]);
+            double factor = overlay.factor(i);
+            override.put("closed", factor == Double.POSITIVE_INFINITY);
+            if (factor != Double.POSITIVE_INFINITY) {
+                override.put("factor", factor);
+            }
+            overrides.add(override);
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("version", overlay.version);
+        result.put("overrides", overrides);
+        return result;
+    }
+
+    /**
+     * Parses the name of a routing algorithm, halting the request if it is not one of the
+     * Router.Algorithm constants.
+     */
+    private static Router.Algorithm getAlgorithm(String name) {
+        try {
+            return Router.Algorithm.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Unknown routing algorithm " + name + ".");
+            return null;
+        }
+    }
+
+    /**
+     * Parses the name of a routing profile, halting the request if it is not one of the
+     * RoutingProfile constants.
+     */
+    private static RoutingProfile getProfile(String name) {
+        try {
+            return RoutingProfile.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Unknown routing profile " + name + ".");
+            return null;
+        }
+    }
+
+    /**
+     * Answers a binary raster request: the fields of RASTER_HEADER_PARAMS as X-Raster-*
+     * headers, then the PNG encoded straight into the response stream, so the image is never
+     * held in memory in encoded form. A request whose box misses the map gets
+     * NO_CONTENT_RESPONSE with only the headers.
+     */
+    private static void sendRaster(Map<String, Object> rasteredImageParams, boolean success,
+                                   Dataset d, spark.Response res) throws IOException {
+        HttpServletResponse raw = res.raw();
+        BufferedImage img = success ? drawRaster(rasteredImageParams, d) : null;
+        StringBuilder exposed = new StringBuilder();
+        for (String param : RASTER_HEADER_PARAMS) {
+            Object value = rasteredImageParams.get(param);
+            if (value != null) {
+                String header = rasterHeader(param);
+                raw.setHeader(header, value.toString());
+                exposed.append(exposed.length() == 0 ? "" : ", ").append(header);
+            }
+        }
+        /* Let the page's scripts read the headers despite cross-origin requests. */
+        raw.setHeader("Access-Control-Expose-Headers", exposed.toString());
+        if (img == null) {
+            res.status(NO_CONTENT_RESPONSE);
+            return;
+        }
+        raw.setContentType("image/png");
+        OutputStream out = raw.getOutputStream();
+        ImageIO.write(img, "png", out);
+        out.flush();
+    }
+
+    /** The header carrying a raster result field, such as X-Raster-Ul-Lon for raster_ul_lon. */
+    private static String rasterHeader(String param) {
+        StringBuilder header = new StringBuilder("X-Raster");
+        for (String word : param.replaceFirst("^raster_", "").split("_")) {
+            header.append('-').append(Character.toUpperCase(word.charAt(0)))
+                    .append(word.substring(1));
+        }
+        return header.toString();
+    }
+
     /** Writes the images corresponding to rasteredImgParams to the output stream.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we have made this into provided code since it was just a bit too low level.
      */
     private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
-                                                  ByteArrayOutputStream os) {
-        String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
-        int numVertTiles = renderGrid.length;
-        int numHorizTiles = renderGrid[0].length;
+                                                  Dataset d, ByteArrayOutputStream os) {
+        BufferedImage img = drawRaster(rasteredImageParams, d);
+        try {
+            ImageIO.write(img, "png", os);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
-                numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+    /**
+     * Stitches the tiles of rasteredImageParams into one image and draws the route of d on
+     * it, adding the image's raster_width and raster_height to rasteredImageParams.
+     */
+    private static BufferedImage drawRaster(Map<String, Object> rasteredImageParams,
+                                            Dataset d) {
+        String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
+        /* Tiles are fetched and copied into the image in parallel. */
+        BufferedImage img = new TileCompositor(tileCache, MapServer.TILE_SIZE)
+                .composite(renderGrid);
         Graphics graphic = img.getGraphics();
-        int x = 0, y = 0;
-
-        for (int r = 0; r < numVertTiles; r += 1) {
-            for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(renderGrid[r][c]), x, y, null);
-                x += MapServer.TILE_SIZE;
-                if (x >= img.getWidth()) {
-                    x = 0;
-                    y += MapServer.TILE_SIZE;
-                }
-            }
-        }
 
         /* If there is a route, draw it. */
         double ullon = (double) rasteredImageParams.get("raster_ul_lon"); //tiles.get(0).ulp;
@@ -221,7 +1237,10 @@ public class MapServer {
 
         final double wdpp = (lrlon - ullon) / img.getWidth();
         final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
+        /* The route and graph come from the same dataset, so every id is in the graph. */
+        GraphDB graph = d.graph;
+        List<Long> route = d.route;
+        if (!route.isEmpty()) {
             Graphics2D g2d = (Graphics2D) graphic;
             g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
             g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
@@ -237,33 +1256,14 @@ public class MapServer {
 
         rasteredImageParams.put("raster_width", img.getWidth());
         rasteredImageParams.put("raster_height", img.getHeight());
-
-        try {
-            ImageIO.write(img, "png", os);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-    }
-
-    private static BufferedImage getImage(String imgPath) {
-        BufferedImage tileImg = null;
-        if (tileImg == null) {
-            try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
-            }
-        }
-        return tileImg;
+        return img;
     }
 
     /**
      * Clear the current found route, if it exists.
      */
     public static void clearRoute() {
-        route = new LinkedList<Long>();
+        dataset.updateAndGet(d -> d.withRoute(Collections.emptyList()));
     }
 
     /**
@@ -276,7 +1276,7 @@ public class MapServer {
     public static List<String> getLocationsByPrefix(String prefix) {
 
         ArrayList<String> lst = new ArrayList<String>();
-        Iterable<GraphDB.Location> locations = graph.locationTrieST.keysWithPrefix(prefix);
+        Iterable<GraphDB.Location> locations = searchGraph().locationTrieST.keysWithPrefix(prefix);
         for(GraphDB.Location s: locations) {
             lst.add(s.name);
         }
@@ -297,7 +1297,7 @@ public class MapServer {
      */
     public static List<Map<String, Object>> getLocations(String locationName) {
         locationName = locationName.replaceAll("[^a-zA-Z\\s]+","").toLowerCase();
-        List<GraphDB.Location> locations = graph.locationTrieST.keysThatMatch(locationName);
+        List<GraphDB.Location> locations = searchGraph().locationTrieST.keysThatMatch(locationName);
         List<Map<String, Object>> result= new ArrayList<>();
         for(GraphDB.Location location : locations){
             Map<String, Object> map= new HashMap<>();
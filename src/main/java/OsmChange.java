@@ -0,0 +1,165 @@
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The contents of an OSM change file (.osc): the nodes and ways it creates, modifies and
+ * deletes, in document order. Only what the road graph uses is kept, which is node positions
+ * and names and way nodes and highway, maxspeed and name tags; relations are skipped. A
+ * created or modified element carries its complete new state, as in the OSM data model.
+ *
+ * See <a href="https://wiki.openstreetmap.org/wiki/OsmChange">the osmChange format</a>.
+ */
+class OsmChange {
+    enum Action { CREATE, MODIFY, DELETE }
+
+    /** One created, modified or deleted node or way. */
+    static final class Element {
+        final Action action;
+        final boolean way;
+        final long id;
+        /** Position of a node; NaN for ways and deleted nodes. */
+        double lon = Double.NaN;
+        double lat = Double.NaN;
+        String name;
+        String highway;
+        String maxspeed;
+        /** The first refCount entries are the nodes of a way. */
+        long[] refs = new long[0];
+        int refCount;
+
+        Element(Action action, boolean way, long id) {
+            this.action = action;
+            this.way = way;
+            this.id = id;
+        }
+
+        private void addRef(long ref) {
+            if (refCount == refs.length) {
+                refs = Arrays.copyOf(refs, Math.max(8, 2 * refCount));
+            }
+            refs[refCount++] = ref;
+        }
+    }
+
+    private final List<Element> elements;
+
+    private OsmChange(List<Element> elements) {
+        this.elements = elements;
+    }
+
+    /** The changed elements in document order. */
+    List<Element> elements() {
+        return Collections.unmodifiableList(elements);
+    }
+
+    /**
+     * Parses an osmChange document.
+     * @throws XMLStreamException If the document is malformed, or a node or way lacks an id
+     * or a created or modified node lacks a position.
+     */
+    static OsmChange read(InputStream in) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XMLStreamReader xml = factory.createXMLStreamReader(in);
+        List<Element> elements = new ArrayList<>();
+        Action action = null;
+        Element current = null;
+        try {
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (xml.getLocalName()) {
+                        case "create":
+                            action = Action.CREATE;
+                            break;
+                        case "modify":
+                            action = Action.MODIFY;
+                            break;
+                        case "delete":
+                            action = Action.DELETE;
+                            break;
+                        case "node":
+                        case "way":
+                            if (action == null) {
+                                throw new XMLStreamException("Element outside of create, modify"
+                                        + " or delete.", xml.getLocation());
+                            }
+                            current = new Element(action, xml.getLocalName().equals("way"),
+                                    parseLong(xml, "id"));
+                            if (!current.way && action != Action.DELETE) {
+                                current.lon = parseDouble(xml, "lon");
+                                current.lat = parseDouble(xml, "lat");
+                            }
+                            elements.add(current);
+                            break;
+                        case "nd":
+                            if (current != null && current.way) {
+                                current.addRef(parseLong(xml, "ref"));
+                            }
+                            break;
+                        case "tag":
+                            if (current != null) {
+                                tag(current, xml.getAttributeValue(null, "k"),
+                                        xml.getAttributeValue(null, "v"));
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = xml.getLocalName();
+                    if (name.equals("node") || name.equals("way")) {
+                        current = null;
+                    } else if (name.equals("create") || name.equals("modify")
+                            || name.equals("delete")) {
+                        action = null;
+                    }
+                }
+            }
+        } finally {
+            xml.close();
+        }
+        return new OsmChange(elements);
+    }
+
+    private static void tag(Element e, String k, String v) {
+        if (k == null) {
+            return;
+        }
+        if (k.equals("name")) {
+            e.name = v;
+        } else if (e.way && k.equals("highway")) {
+            e.highway = v;
+        } else if (e.way && k.equals("maxspeed")) {
+            e.maxspeed = v;
+        }
+    }
+
+    private static long parseLong(XMLStreamReader xml, String attribute)
+            throws XMLStreamException {
+        try {
+            return Long.parseLong(xml.getAttributeValue(null, attribute));
+        } catch (NumberFormatException e) {
+            throw new XMLStreamException("Missing or invalid " + attribute + " on "
+                    + xml.getLocalName() + ".", xml.getLocation());
+        }
+    }
+
+    private static double parseDouble(XMLStreamReader xml, String attribute)
+            throws XMLStreamException {
+        String value = xml.getAttributeValue(null, attribute);
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException | NullPointerException e) {
+            throw new XMLStreamException("Missing or invalid " + attribute + " on "
+                    + xml.getLocalName() + ".", xml.getLocation());
+        }
+    }
+}
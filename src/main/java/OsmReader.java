@@ -0,0 +1,717 @@
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Staged, multi-threaded reader that turns an OSM extract into the cleaned road graph. Both
+ * OSM XML and, for paths ending in ".pbf", the binary OSM PBF format are supported.
+ *
+ * <ol>
+ *   <li>The calling thread streams the file into batches, which go into a bounded queue. A
+ *   slow consumer therefore blocks the reader instead of letting the whole file pile up in
+ *   memory. For XML a batch is the raw attribute strings of a run of nodes and ways, read with
+ *   StAX; for PBF it is one still-compressed data block (see {@link PbfDecoder}).</li>
+ *   <li>Worker threads take batches off the queue and decode them: ids and coordinates are
+ *   parsed into primitive arrays, ways that are not roads (see
+ *   {@link Highway}) are dropped and the remaining ways become road segments, each
+ *   remembering its highway type and speed limit.</li>
+ *   <li>Once the file is done, the batch results are put back in file order and packed into
+ *   a CompactGraph, again in parallel. Only nodes that end at least one road segment get a
+ *   vertex; every other node only ever lived as three primitives in a batch result.
+ *   Finally the vertices are renumbered along a Hilbert curve for memory locality.</li>
+ * </ol>
+ *
+ * The result does not depend on the number of workers: each adjacency list follows the order
+ * of the ways in the file, and vertices in the same Hilbert cell are numbered by id.
+ */
+class OsmReader {
+    /** Number of nodes plus ways per batch. */
+    private static final int BATCH_SIZE = 4096;
+    /** Number of nodes or segments buildGraph gives a thread at a time. */
+    private static final int BLOCK_SIZE = 1 << 14;
+    /** An empty batch that tells a worker the reader is done; workers check for it by identity. */
+    private static final Batch END = new Batch(-1);
+
+    private final int workers;
+    private final BlockingQueue<Batch> queue;
+    private final Map<Integer, Chunk> chunks = new ConcurrentHashMap<>();
+    private volatile Throwable failure;
+
+    private CompactGraph graph = new CompactGraph(new long[0], new double[0], new double[0],
+            new int[1], new int[0]);
+    private Map<Long, String> wayNames = new HashMap<>();
+    private List<GraphDB.Location> locations = new ArrayList<>();
+    private boolean keepSource;
+    private OsmSource source;
+
+    /** Creates a reader that parses on one worker thread per available processor. */
+    OsmReader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a reader with the given number of worker threads. */
+    OsmReader(int workers) {
+        this.workers = Math.max(1, workers);
+        this.queue = new ArrayBlockingQueue<>(2 * this.workers);
+    }
+
+    /** The road graph read by the last call to read, or an empty graph before that. */
+    CompactGraph graph() {
+        return graph;
+    }
+
+    /** Names of the road ways read, keyed by OSM way id. */
+    Map<Long, String> wayNames() {
+        return wayNames;
+    }
+
+    /** Every named node read, in file order, whether or not it is part of a road. */
+    List<GraphDB.Location> locations() {
+        return locations;
+    }
+
+    /**
+     * Chooses whether read also keeps the OsmSource that change files are applied to. It
+     * holds the position of every node in the file, so it is off by default.
+     */
+    void setKeepSource(boolean keepSource) {
+        this.keepSource = keepSource;
+    }
+
+    /** The source data read by the last call to read, or null if it was not kept. */
+    OsmSource source() {
+        return source;
+    }
+
+    /**
+     * Reads the OSM file at path, as PBF if the name ends in ".pbf" and as XML otherwise. On success graph(), wayNames() and locations() return
+     * its contents; on failure they keep their previous values.
+     */
+    void read(String path) throws IOException, XMLStreamException {
+        List<Thread> threads = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            Thread t = new Thread(this::work, "osm-reader-" + i);
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        int batches;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(path), 1 << 16)) {
+            batches = path.endsWith(".pbf") ? streamPbf(in) : streamXml(in);
+        } finally {
+            for (int i = 0; i < workers; i++) {
+                putUninterruptibly(END);
+            }
+            for (Thread t : threads) {
+                joinUninterruptibly(t);
+            }
+        }
+        if (failure != null) {
+            throw new IOException("Could not parse " + path, failure);
+        }
+        assemble(batches);
+    }
+
+    /**
+     * Copies node and way attributes from the XML stream into batches and queues them.
+     * Returns the number of batches queued.
+     */
+    private int streamXml(InputStream in) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XMLStreamReader xml = factory.createXMLStreamReader(in);
+        int seq = 0;
+        XmlBatch batch = new XmlBatch(seq++);
+        boolean inNode = false;
+        boolean inWay = false;
+        try {
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (xml.getLocalName()) {
+                        case "node":
+                            inNode = true;
+                            batch.addNode(xml.getAttributeValue(null, "id"),
+                                    xml.getAttributeValue(null, "lon"),
+                                    xml.getAttributeValue(null, "lat"));
+                            break;
+                        case "way":
+                            inWay = true;
+                            batch.addWay(xml.getAttributeValue(null, "id"));
+                            break;
+                        case "nd":
+                            if (inWay) {
+                                batch.addRef(xml.getAttributeValue(null, "ref"));
+                            }
+                            break;
+                        case "tag":
+                            if (inWay) {
+                                batch.wayTag(xml.getAttributeValue(null, "k"),
+                                        xml.getAttributeValue(null, "v"));
+                            } else if (inNode && "name".equals(xml.getAttributeValue(null, "k"))) {
+                                batch.nodeName(xml.getAttributeValue(null, "v"));
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = xml.getLocalName();
+                    if (name.equals("node") || name.equals("way")) {
+                        inNode = false;
+                        inWay = false;
+                        if (batch.isFull()) {
+                            putUninterruptibly(batch);
+                            batch = new XmlBatch(seq++);
+                        }
+                    }
+                }
+            }
+        } finally {
+            xml.close();
+        }
+        putUninterruptibly(batch);
+        return seq;
+    }
+
+    /**
+     * Reads the blobs of a PBF file and queues each data block for decoding. The header
+     * block is checked here, before any work is queued. Returns the number of batches queued.
+     */
+    private int streamPbf(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int seq = 0;
+        PbfDecoder.Blob blob;
+        while ((blob = PbfDecoder.readBlob(data)) != null) {
+            if (blob.type.equals("OSMHeader")) {
+                PbfDecoder.checkHeader(blob.data);
+            } else if (blob.type.equals("OSMData")) {
+                putUninterruptibly(new PbfBatch(seq++, blob.data));
+            }
+        }
+        return seq;
+    }
+
+    /** Worker loop: parses batches until the reader is done. */
+    private void work() {
+        while (true) {
+            Batch batch = takeUninterruptibly();
+            if (batch == END) {
+                return;
+            }
+            if (failure != null) {
+                continue;
+            }
+            try {
+                chunks.put(batch.seq, batch.parse());
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+    }
+
+    /** Puts the parsed batches back in file order and builds the results from them. */
+    private void assemble(int batches) {
+        Chunk[] ordered = new Chunk[batches];
+        for (int i = 0; i < batches; i++) {
+            ordered[i] = chunks.remove(i);
+        }
+        Map<Long, String> names = new HashMap<>();
+        List<GraphDB.Location> named = new ArrayList<>();
+        for (Chunk c : ordered) {
+            for (int i = 0; i < c.ways; i++) {
+                if (c.wayNames[i] != null) {
+                    names.put(c.wayIds[i], c.wayNames[i]);
+                }
+            }
+            named.addAll(c.locations);
+        }
+        graph = buildGraph(ordered);
+        wayNames = names;
+        locations = named;
+        source = keepSource ? new OsmSource(ordered) : null;
+    }
+
+    /**
+     * Packs road segments into the compact graph, with adjacency lists in the order of the
+     * chunks. Vertices are the nodes that end a road segment; segments whose nodes are missing
+     * from every chunk are skipped. Only the slotting of segment ends is serial: coordinates,
+     * degrees and adjacency lists are filled in parallel, in ranges of at most BLOCK_SIZE
+     * nodes or segments so that the single chunk of an OsmSource is split up too.
+     */
+    static CompactGraph buildGraph(Chunk... ordered) {
+        int[] firstSegment = new int[ordered.length + 1];
+        for (int i = 0; i < ordered.length; i++) {
+            firstSegment[i + 1] = firstSegment[i] + ordered[i].segments;
+        }
+        int segments = firstSegment[ordered.length];
+
+        /* Slot every node that ends a segment. The index is only read after this. */
+        IdIndex referenced = new IdIndex(segments + 1);
+        int[][] endSlots = new int[ordered.length][];
+        for (int i = 0; i < ordered.length; i++) {
+            Chunk c = ordered[i];
+            endSlots[i] = new int[2 * c.segments];
+            for (int s = 0; s < 2 * c.segments; s++) {
+                int slot = referenced.get(c.ends[s]);
+                if (slot < 0) {
+                    slot = referenced.size();
+                    referenced.put(c.ends[s], slot);
+                }
+                endSlots[i][s] = slot;
+            }
+        }
+        int slots = referenced.size();
+
+        /* A node listed more than once keeps its first position: one pass finds the first
+         * range that lists each slot, as rangeCount minus its index, the next copies the
+         * position from that range. */
+        int[] nodeRanges = ranges(ordered, c -> c.nodes);
+        int rangeCount = nodeRanges.length / 3;
+        int[][] nodeSlots = new int[rangeCount][];
+        AtomicIntegerArray firstRange = new AtomicIntegerArray(slots);
+        forEachRange(nodeRanges, (r, i, from, to) -> {
+            long[] ids = ordered[i].ids;
+            int[] found = new int[to - from];
+            for (int k = from; k < to; k++) {
+                int slot = referenced.get(ids[k]);
+                found[k - from] = slot;
+                if (slot >= 0) {
+                    firstRange.accumulateAndGet(slot, rangeCount - r, Math::max);
+                }
+            }
+            nodeSlots[r] = found;
+        });
+        double[] slotLons = new double[slots];
+        double[] slotLats = new double[slots];
+        boolean[] found = new boolean[slots];
+        forEachRange(nodeRanges, (r, i, from, to) -> {
+            Chunk c = ordered[i];
+            for (int k = from; k < to; k++) {
+                int slot = nodeSlots[r][k - from];
+                if (slot >= 0 && !found[slot] && firstRange.get(slot) == rangeCount - r) {
+                    found[slot] = true;
+                    slotLons[slot] = c.lons[k];
+                    slotLats[slot] = c.lats[k];
+                }
+            }
+            nodeSlots[r] = null;
+        });
+
+        /* Keep the slots that have coordinates and at least one usable segment. */
+        int[] segmentRanges = ranges(ordered, c -> c.segments);
+        AtomicIntegerArray slotDegree = new AtomicIntegerArray(slots);
+        forEachRange(segmentRanges, (r, i, from, to) -> {
+            int[] ends = endSlots[i];
+            for (int s = from; s < to; s++) {
+                if (found[ends[2 * s]] && found[ends[2 * s + 1]]) {
+                    slotDegree.incrementAndGet(ends[2 * s]);
+                    slotDegree.incrementAndGet(ends[2 * s + 1]);
+                }
+            }
+        });
+        long[] kept = new long[slots];
+        int n = 0;
+        for (int i = 0; i < ordered.length; i++) {
+            for (int s = 0; s < 2 * ordered[i].segments; s++) {
+                int slot = endSlots[i][s];
+                int degree = slotDegree.get(slot);
+                if (degree > 0) {
+                    kept[n++] = ordered[i].ends[s];
+                    slotDegree.set(slot, -degree);
+                }
+            }
+        }
+        long[] ids = Arrays.copyOf(kept, n);
+        Arrays.parallelSort(ids);
+
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        int[] offsets = new int[n + 1];
+        int[] slotVertex = new int[slots];
+        Arrays.fill(slotVertex, -1);
+        IntStream.range(0, n).parallel().forEach(v -> {
+            int slot = referenced.get(ids[v]);
+            slotVertex[slot] = v;
+            lons[v] = slotLons[slot];
+            lats[v] = slotLats[slot];
+            offsets[v + 1] = -slotDegree.get(slot);
+        });
+        Arrays.parallelPrefix(offsets, Integer::sum);
+
+        /* Ranges claim adjacency entries as they go, each tagged with its segment's place in
+         * the file and the end it starts from. */
+        int m = offsets[n];
+        int[] targets = new int[m];
+        byte[] highways = new byte[m];
+        byte[] speeds = new byte[m];
+        int[] order = new int[m];
+        AtomicIntegerArray next = new AtomicIntegerArray(Arrays.copyOf(offsets, n));
+        forEachRange(segmentRanges, (r, i, from, to) -> {
+            Chunk c = ordered[i];
+            int[] ends = endSlots[i];
+            for (int s = from; s < to; s++) {
+                int a = slotVertex[ends[2 * s]];
+                int b = slotVertex[ends[2 * s + 1]];
+                if (a >= 0 && b >= 0) {
+                    int e = next.getAndIncrement(a);
+                    targets[e] = b;
+                    highways[e] = c.highways[s];
+                    speeds[e] = c.speeds[s];
+                    order[e] = 2 * (firstSegment[i] + s);
+                    e = next.getAndIncrement(b);
+                    targets[e] = a;
+                    highways[e] = c.highways[s];
+                    speeds[e] = c.speeds[s];
+                    order[e] = 2 * (firstSegment[i] + s) + 1;
+                }
+            }
+        });
+        /* Put every list back in file order, so the result does not depend on scheduling. */
+        IntStream.range(0, n).parallel().forEach(v ->
+                sortList(offsets[v], offsets[v + 1], order, targets, highways, speeds));
+        CompactGraph g = new CompactGraph(ids, lons, lats, offsets, targets, highways, speeds);
+        return g.hilbertOrdered();
+    }
+
+    /**
+     * Sorts entries from up to to of targets, highways and speeds by their order keys, which
+     * are distinct. Road junctions have a handful of entries, so those are insertion sorted.
+     */
+    private static void sortList(int from, int to, int[] order, int[] targets, byte[] highways,
+                                 byte[] speeds) {
+        if (to - from > 32) {
+            long[] keyed = new long[to - from];
+            for (int e = from; e < to; e++) {
+                keyed[e - from] = (long) order[e] << 32 | (e - from);
+            }
+            Arrays.sort(keyed);
+            int[] oldTargets = Arrays.copyOfRange(targets, from, to);
+            byte[] oldHighways = Arrays.copyOfRange(highways, from, to);
+            byte[] oldSpeeds = Arrays.copyOfRange(speeds, from, to);
+            for (int k = 0; k < keyed.length; k++) {
+                int old = (int) keyed[k];
+                order[from + k] = (int) (keyed[k] >>> 32);
+                targets[from + k] = oldTargets[old];
+                highways[from + k] = oldHighways[old];
+                speeds[from + k] = oldSpeeds[old];
+            }
+            return;
+        }
+        for (int e = from + 1; e < to; e++) {
+            int key = order[e];
+            int target = targets[e];
+            byte highway = highways[e];
+            byte speed = speeds[e];
+            int f = e;
+            for (; f > from && order[f - 1] > key; f--) {
+                order[f] = order[f - 1];
+                targets[f] = targets[f - 1];
+                highways[f] = highways[f - 1];
+                speeds[f] = speeds[f - 1];
+            }
+            order[f] = key;
+            targets[f] = target;
+            highways[f] = highway;
+            speeds[f] = speed;
+        }
+    }
+
+    /**
+     * Splits the first count(c) items of every chunk c into ranges of at most BLOCK_SIZE, in
+     * file order. Range r covers items ranges[3 * r + 1] up to ranges[3 * r + 2] of chunk
+     * ranges[3 * r].
+     */
+    private static int[] ranges(Chunk[] chunks, ToIntFunction<Chunk> count) {
+        int total = 0;
+        for (Chunk c : chunks) {
+            total += (count.applyAsInt(c) + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        }
+        int[] ranges = new int[3 * total];
+        int r = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            int items = count.applyAsInt(chunks[i]);
+            for (int from = 0; from < items; from += BLOCK_SIZE) {
+                ranges[r++] = i;
+                ranges[r++] = from;
+                ranges[r++] = Math.min(items, from + BLOCK_SIZE);
+            }
+        }
+        return ranges;
+    }
+
+    /** Runs body on every range made by ranges, in parallel on the common fork-join pool. */
+    private static void forEachRange(int[] ranges, RangeBody body) {
+        IntStream.range(0, ranges.length / 3).parallel().forEach(r ->
+                body.run(r, ranges[3 * r], ranges[3 * r + 1], ranges[3 * r + 2]));
+    }
+
+    /** Work on items from up to to of chunk i, which is range r. */
+    private interface RangeBody {
+        void run(int r, int i, int from, int to);
+    }
+
+    private void putUninterruptibly(Batch batch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(batch);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Batch takeUninterruptibly() {
+        while (true) {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                // Workers only stop on END, so that the reader can never block on a full queue.
+            }
+        }
+    }
+
+    private static void joinUninterruptibly(Thread t) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                t.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A unit of work for the decoding stage; seq is its position in the file. A plain Batch
+     * holds nothing, and the subclasses carry the data of each format.
+     */
+    static class Batch {
+        final int seq;
+
+        Batch(int seq) {
+            this.seq = seq;
+        }
+
+        /** Decodes this batch. Called on a worker thread. */
+        Chunk parse() throws IOException {
+            return new Chunk(0);
+        }
+    }
+
+    /**
+     * Raw attribute strings for up to BATCH_SIZE nodes and ways, in file order. Nodes take
+     * four fields (id, lon, lat, name) and ways four (id, highway, maxspeed, name); the nd refs of way
+     * i are refs[refEnds[i - 1]] through refs[refEnds[i] - 1].
+     */
+    private static final class XmlBatch extends Batch {
+        int nodes;
+        int ways;
+        int refCount;
+        final String[] nodeFields = new String[4 * BATCH_SIZE];
+        final String[] wayFields = new String[4 * BATCH_SIZE];
+        final int[] refEnds = new int[BATCH_SIZE];
+        String[] refs = new String[4 * BATCH_SIZE];
+
+        XmlBatch(int seq) {
+            super(seq);
+        }
+
+        boolean isFull() {
+            return nodes + ways >= BATCH_SIZE;
+        }
+
+        void addNode(String id, String lon, String lat) {
+            nodeFields[4 * nodes] = id;
+            nodeFields[4 * nodes + 1] = lon;
+            nodeFields[4 * nodes + 2] = lat;
+            nodes++;
+        }
+
+        void nodeName(String name) {
+            nodeFields[4 * (nodes - 1) + 3] = name;
+        }
+
+        void addWay(String id) {
+            wayFields[4 * ways] = id;
+            refEnds[ways] = refCount;
+            ways++;
+        }
+
+        void addRef(String ref) {
+            if (refCount == refs.length) {
+                refs = Arrays.copyOf(refs, 2 * refs.length);
+            }
+            refs[refCount++] = ref;
+            refEnds[ways - 1] = refCount;
+        }
+
+        void wayTag(String k, String v) {
+            if (k.equals("highway")) {
+                wayFields[4 * (ways - 1) + 1] = v;
+            } else if (k.equals("maxspeed")) {
+                wayFields[4 * (ways - 1) + 2] = v;
+            } else if (k.equals("name")) {
+                wayFields[4 * (ways - 1) + 3] = v;
+            }
+        }
+
+        /** Parses the numbers in the batch. */
+        @Override
+        Chunk parse() {
+            Chunk chunk = new Chunk(nodes);
+            for (int i = 0; i < nodes; i++) {
+                long id = Long.parseLong(nodeFields[4 * i]);
+                double lon = Double.parseDouble(nodeFields[4 * i + 1]);
+                double lat = Double.parseDouble(nodeFields[4 * i + 2]);
+                chunk.addNode(id, lon, lat, nodeFields[4 * i + 3]);
+            }
+            long[] wayRefs = new long[16];
+            int refStart = 0;
+            for (int i = 0; i < ways; i++) {
+                int refEnd = refEnds[i];
+                String highway = wayFields[4 * i + 1];
+                if (Highway.of(highway) != null) {
+                    if (refEnd - refStart > wayRefs.length) {
+                        wayRefs = new long[refEnd - refStart];
+                    }
+                    for (int r = refStart; r < refEnd; r++) {
+                        wayRefs[r - refStart] = Long.parseLong(refs[r]);
+                    }
+                    chunk.addWay(Long.parseLong(wayFields[4 * i]), highway, wayFields[4 * i + 2],
+                            wayFields[4 * i + 3], wayRefs, refEnd - refStart);
+                }
+                refStart = refEnd;
+            }
+            return chunk;
+        }
+    }
+
+    /** One compressed PBF data block. */
+    private static final class PbfBatch extends Batch {
+        private final byte[] blob;
+
+        PbfBatch(int seq, byte[] blob) {
+            super(seq);
+            this.blob = blob;
+        }
+
+        @Override
+        Chunk parse() throws IOException {
+            return PbfDecoder.decode(blob);
+        }
+    }
+
+    /** The decoded contents of one batch: node positions, named nodes and road segments. */
+    static final class Chunk {
+        long[] ids;
+        double[] lons;
+        double[] lats;
+        int nodes;
+        final List<GraphDB.Location> locations = new ArrayList<>(0);
+        /**
+         * Segment s runs between nodes ends[2 * s] and ends[2 * s + 1], on a road of type
+         * highways[s] with speed limit speeds[s] (see CompactGraph).
+         */
+        long[] ends = new long[64];
+        byte[] highways = new byte[32];
+        byte[] speeds = new byte[32];
+        int segments;
+        /**
+         * Road way i has id wayIds[i] and name wayNames[i], or null, and is made of segments
+         * wayEnds[i - 1] (or 0) up to wayEnds[i]; ways that are not roads are not recorded.
+         */
+        long[] wayIds = new long[16];
+        String[] wayNames = new String[16];
+        int[] wayEnds = new int[16];
+        int ways;
+
+        Chunk(int expectedNodes) {
+            int capacity = Math.max(16, expectedNodes);
+            ids = new long[capacity];
+            lons = new double[capacity];
+            lats = new double[capacity];
+        }
+
+        /** Adds a node; name is null for nodes without a name tag. */
+        void addNode(long id, double lon, double lat, String name) {
+            if (nodes == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * nodes);
+                lons = Arrays.copyOf(lons, 2 * nodes);
+                lats = Arrays.copyOf(lats, 2 * nodes);
+            }
+            ids[nodes] = id;
+            lons[nodes] = lon;
+            lats[nodes] = lat;
+            nodes++;
+            if (name != null) {
+                locations.add(new GraphDB.Location(id, lon, lat, name));
+            }
+        }
+
+        /**
+         * Adds a way given its highway, maxspeed and name tags (each possibly null) and the
+         * first refCount entries of refs as its nodes. Ways that are not allowed roads are
+         * ignored.
+         */
+        void addWay(long id, String highway, String maxspeed, String name, long[] refs,
+                    int refCount) {
+            Highway type = Highway.of(highway);
+            if (type == null) {
+                return;
+            }
+            addWay(id, type.code(), (byte) Highway.parseMaxspeed(maxspeed), name, refs,
+                    refCount);
+        }
+
+        /** Adds a road way of the given Highway code and speed limit byte. */
+        void addWay(long id, byte highway, byte speed, String name, long[] refs, int refCount) {
+            for (int r = 1; r < refCount; r++) {
+                if (2 * segments + 2 > ends.length) {
+                    ends = Arrays.copyOf(ends, 2 * ends.length);
+                    highways = Arrays.copyOf(highways, ends.length / 2);
+                    speeds = Arrays.copyOf(speeds, ends.length / 2);
+                }
+                ends[2 * segments] = refs[r - 1];
+                ends[2 * segments + 1] = refs[r];
+                highways[segments] = highway;
+                speeds[segments] = speed;
+                segments++;
+            }
+            if (ways == wayIds.length) {
+                wayIds = Arrays.copyOf(wayIds, 2 * ways);
+                wayNames = Arrays.copyOf(wayNames, 2 * ways);
+                wayEnds = Arrays.copyOf(wayEnds, 2 * ways);
+            }
+            wayIds[ways] = id;
+            wayNames[ways] = name;
+            wayEnds[ways++] = segments;
+        }
+    }
+}
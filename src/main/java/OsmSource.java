@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The parts of an OSM extract that the road graph is built from, kept after loading so that
+ * change files can be applied without reading the extract again: the position of every node,
+ * every road way with its tags and nodes, and the named nodes. Node positions live in
+ * primitive arrays indexed through an IdIndex; ways and names are few enough for maps.
+ *
+ * Applying a change only touches the elements it names. Building a GraphDB afterwards is
+ * not incremental, though: it repacks the compact graph, the spatial index, the components
+ * and the location index from the retained data, so every change costs time proportional to
+ * the whole graph. That is a fraction of the cost of parsing the extract, and keeps the
+ * result identical to a fresh load. Ways and named nodes are kept in file order, with
+ * modified elements in place and created ones at the end, so the result is the graph that
+ * reading the changed extract would give; in particular, the location index resolves
+ * duplicate names to the same node as before.
+ *
+ * An OsmSource is not thread-safe; GraphDB hands it from one version to the next.
+ */
+class OsmSource {
+    /** A road way: its Highway code, speed limit byte, name (or null) and nodes. */
+    private static final class Way {
+        final byte highway;
+        final byte speed;
+        final String name;
+        final long[] refs;
+
+        Way(byte highway, byte speed, String name, long[] refs) {
+            this.highway = highway;
+            this.speed = speed;
+            this.name = name;
+            this.refs = refs;
+        }
+    }
+
+    private final IdIndex nodeSlots;
+    /** Node positions by slot; deleted nodes have NaN coordinates. */
+    private double[] lons;
+    private double[] lats;
+    private final Map<Long, Way> ways = new LinkedHashMap<>();
+    private final Map<Long, GraphDB.Location> locations = new LinkedHashMap<>();
+
+    /** Collects the nodes, road ways and named nodes of chunks given in file order. */
+    OsmSource(OsmReader.Chunk[] ordered) {
+        int nodes = 0;
+        for (OsmReader.Chunk c : ordered) {
+            nodes += c.nodes;
+        }
+        nodeSlots = new IdIndex(nodes);
+        lons = new double[Math.max(16, nodes)];
+        lats = new double[lons.length];
+        for (OsmReader.Chunk c : ordered) {
+            for (int i = 0; i < c.nodes; i++) {
+                if (nodeSlots.get(c.ids[i]) < 0) {
+                    setNode(c.ids[i], c.lons[i], c.lats[i]);
+                }
+            }
+            for (GraphDB.Location location : c.locations) {
+                locations.put(location.id, location);
+            }
+            int start = 0;
+            for (int w = 0; w < c.ways; w++) {
+                int end = c.wayEnds[w];
+                if (end > start) {
+                    long[] refs = new long[end - start + 1];
+                    refs[0] = c.ends[2 * start];
+                    for (int s = start; s < end; s++) {
+                        refs[s - start + 1] = c.ends[2 * s + 1];
+                    }
+                    ways.put(c.wayIds[w], new Way(c.highways[start], c.speeds[start],
+                            c.wayNames[w], refs));
+                }
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * Applies every element of change, in order.
+     * @return An action that puts back every element the change touched, restoring the state
+     * from before this call as long as nothing else was applied since.
+     */
+    Runnable apply(OsmChange change) {
+        /* Deleting and re-adding an entry would move it to the end, so the maps are restored
+         * from copies to keep their order. */
+        Map<Long, Way> previousWays = new LinkedHashMap<>(ways);
+        Map<Long, GraphDB.Location> previousLocations = new LinkedHashMap<>(locations);
+        Map<Long, double[]> previousNodes = new HashMap<>();
+        for (OsmChange.Element e : change.elements()) {
+            if (!e.way && !previousNodes.containsKey(e.id)) {
+                int slot = nodeSlots.get(e.id);
+                previousNodes.put(e.id, slot < 0 ? new double[]{Double.NaN, Double.NaN}
+                        : new double[]{lons[slot], lats[slot]});
+            }
+        }
+        for (OsmChange.Element e : change.elements()) {
+            if (e.way) {
+                Highway type = Highway.of(e.highway);
+                if (e.action == OsmChange.Action.DELETE || type == null || e.refCount < 2) {
+                    ways.remove(e.id);
+                } else {
+                    ways.put(e.id, new Way(type.code(), (byte) Highway.parseMaxspeed(e.maxspeed),
+                            e.name, Arrays.copyOf(e.refs, e.refCount)));
+                }
+            } else if (e.action == OsmChange.Action.DELETE) {
+                setNode(e.id, Double.NaN, Double.NaN);
+                locations.remove(e.id);
+            } else {
+                setNode(e.id, e.lon, e.lat);
+                if (e.name != null) {
+                    locations.put(e.id, new GraphDB.Location(e.id, e.lon, e.lat, e.name));
+                } else {
+                    locations.remove(e.id);
+                }
+            }
+        }
+        return () -> {
+            ways.clear();
+            ways.putAll(previousWays);
+            locations.clear();
+            locations.putAll(previousLocations);
+            /* A node the change created keeps its slot, but with NaN coordinates it is
+             * treated as absent. */
+            for (Map.Entry<Long, double[]> entry : previousNodes.entrySet()) {
+                setNode(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+            }
+        };
+    }
+
+    /** Builds a GraphDB, with fresh spatial and location indices, from the current data. */
+    GraphDB toGraphDB() {
+        OsmReader.Chunk chunk = new OsmReader.Chunk(0);
+        Map<Long, String> names = new HashMap<>();
+        for (Map.Entry<Long, Way> entry : ways.entrySet()) {
+            Way way = entry.getValue();
+            for (long ref : way.refs) {
+                int slot = nodeSlots.get(ref);
+                if (slot >= 0 && !Double.isNaN(lons[slot])) {
+                    chunk.addNode(ref, lons[slot], lats[slot], null);
+                }
+            }
+            chunk.addWay(entry.getKey(), way.highway, way.speed, way.name, way.refs,
+                    way.refs.length);
+            if (way.name != null) {
+                names.put(entry.getKey(), way.name);
+            }
+        }
+        return new GraphDB(OsmReader.buildGraph(chunk), names,
+                new ArrayList<>(locations.values()));
+    }
+
+    private void setNode(long id, double lon, double lat) {
+        int slot = nodeSlots.get(id);
+        if (slot < 0) {
+            slot = nodeSlots.size();
+            if (slot == lons.length) {
+                lons = Arrays.copyOf(lons, 2 * slot);
+                lats = Arrays.copyOf(lats, 2 * slot);
+            }
+            nodeSlots.put(id, slot);
+        }
+        lons[slot] = lon;
+        lats[slot] = lat;
+    }
+}
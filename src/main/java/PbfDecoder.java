@@ -0,0 +1,507 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decoder for the OSM PBF format, with just enough protobuf to read it.
+ *
+ * A PBF file is a sequence of blobs, each introduced by a 4-byte big-endian length and a
+ * BlobHeader message naming its type. The first blob is an "OSMHeader" block listing the
+ * features a reader must support; the rest are "OSMData" blocks, each holding a string table
+ * and groups of nodes, dense nodes, ways and relations. Blob payloads are raw or zlib
+ * compressed.
+ *
+ * Reading blobs off disk is cheap and sequential; inflating and decoding a data block is
+ * where the time goes, and each block is independent, so OsmReader hands blocks to its worker
+ * threads. Only what the road graph needs is decoded: node ids, coordinates and names, and way
+ * ids, node refs and highway, maxspeed and name tags. Relations and metadata are skipped.
+ *
+ * See <a href="https://wiki.openstreetmap.org/wiki/PBF_Format">the PBF format</a>.
+ */
+class PbfDecoder {
+    /** Largest BlobHeader and blob the format allows. */
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+    /** Wire types. */
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int LENGTH_DELIMITED = 2;
+    private static final int FIXED32 = 5;
+
+    private PbfDecoder() {
+    }
+
+    /** One blob as read from disk; data is the serialized, possibly compressed, Blob message. */
+    static final class Blob {
+        final String type;
+        final byte[] data;
+
+        Blob(String type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Reads the next blob, or returns null at the end of the file. A file that ends inside a
+     * blob is reported as truncated rather than as a bare EOFException.
+     */
+    static Blob readBlob(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        byte[] size = new byte[3];
+        readFully(in, size);
+        int headerSize = first << 24 | (size[0] & 0xFF) << 16 | (size[1] & 0xFF) << 8
+                | (size[2] & 0xFF);
+        if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+            throw new IOException("Invalid PBF blob header size " + headerSize + ".");
+        }
+        byte[] header = new byte[headerSize];
+        readFully(in, header);
+        String type = null;
+        int dataSize = -1;
+        Message m = new Message(header, 0, headerSize);
+        while (m.hasNext()) {
+            int tag = m.readTag();
+            if (tag == key(1, LENGTH_DELIMITED)) {
+                type = m.readString();
+            } else if (tag == key(3, VARINT)) {
+                dataSize = (int) m.readVarint();
+            } else {
+                m.skip(tag);
+            }
+        }
+        if (type == null || dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+            throw new IOException("Invalid PBF blob header.");
+        }
+        byte[] data = new byte[dataSize];
+        readFully(in, data);
+        return new Blob(type, data);
+    }
+
+    private static void readFully(DataInputStream in, byte[] bytes) throws IOException {
+        try {
+            in.readFully(bytes);
+        } catch (EOFException e) {
+            throw new IOException("Truncated PBF file.", e);
+        }
+    }
+
+    /**
+     * Checks an OSMHeader block and fails if it requires a feature this decoder lacks, such
+     * as historical information.
+     */
+    static void checkHeader(byte[] blob) throws IOException {
+        byte[] block = inflate(blob);
+        Message m = new Message(block, 0, block.length);
+        while (m.hasNext()) {
+            int tag = m.readTag();
+            if (tag == key(4, LENGTH_DELIMITED)) {
+                String feature = m.readString();
+                if (!feature.equals("OsmSchema-V0.6") && !feature.equals("DenseNodes")) {
+                    throw new IOException("Unsupported PBF feature " + feature + ".");
+                }
+            } else {
+                m.skip(tag);
+            }
+        }
+    }
+
+    /** Inflates and decodes one OSMData block. */
+    static OsmReader.Chunk decode(byte[] blob) throws IOException {
+        byte[] block = inflate(blob);
+        Message m = new Message(block, 0, block.length);
+        String[] strings = new String[0];
+        long granularity = 100;
+        long latOffset = 0;
+        long lonOffset = 0;
+        int groupCount = 0;
+        int[] groupStarts = new int[8];
+        int[] groupEnds = new int[8];
+        while (m.hasNext()) {
+            int tag = m.readTag();
+            if (tag == key(1, LENGTH_DELIMITED)) {
+                strings = readStringTable(m.readMessage());
+            } else if (tag == key(2, LENGTH_DELIMITED)) {
+                if (groupCount == groupStarts.length) {
+                    groupStarts = Arrays.copyOf(groupStarts, 2 * groupCount);
+                    groupEnds = Arrays.copyOf(groupEnds, 2 * groupCount);
+                }
+                int length = m.readLength();
+                groupStarts[groupCount] = m.pos;
+                groupEnds[groupCount++] = m.pos + length;
+                m.pos += length;
+            } else if (tag == key(17, VARINT)) {
+                granularity = m.readVarint();
+            } else if (tag == key(19, VARINT)) {
+                latOffset = m.readVarint();
+            } else if (tag == key(20, VARINT)) {
+                lonOffset = m.readVarint();
+            } else {
+                m.skip(tag);
+            }
+        }
+
+        /* Groups can come before the string table and granularity, so decode them last. */
+        Block b = new Block(strings, granularity, latOffset, lonOffset);
+        OsmReader.Chunk chunk = new OsmReader.Chunk(0);
+        for (int g = 0; g < groupCount; g++) {
+            Message group = new Message(block, groupStarts[g], groupEnds[g]);
+            while (group.hasNext()) {
+                int tag = group.readTag();
+                if (tag == key(1, LENGTH_DELIMITED)) {
+                    b.node(group.readMessage(), chunk);
+                } else if (tag == key(2, LENGTH_DELIMITED)) {
+                    b.denseNodes(group.readMessage(), chunk);
+                } else if (tag == key(3, LENGTH_DELIMITED)) {
+                    b.way(group.readMessage(), chunk);
+                } else {
+                    group.skip(tag);
+                }
+            }
+        }
+        return chunk;
+    }
+
+    /** Returns the decompressed PrimitiveBlock or HeaderBlock held by a Blob message. */
+    private static byte[] inflate(byte[] blob) throws IOException {
+        Message m = new Message(blob, 0, blob.length);
+        int rawSize = -1;
+        byte[] raw = null;
+        int zlibStart = -1;
+        int zlibEnd = -1;
+        while (m.hasNext()) {
+            int tag = m.readTag();
+            if (tag == key(1, LENGTH_DELIMITED)) {
+                Message r = m.readMessage();
+                raw = Arrays.copyOfRange(blob, r.pos, r.limit);
+            } else if (tag == key(2, VARINT)) {
+                rawSize = (int) m.readVarint();
+            } else if (tag == key(3, LENGTH_DELIMITED)) {
+                Message z = m.readMessage();
+                zlibStart = z.pos;
+                zlibEnd = z.limit;
+            } else if ((tag >>> 3) >= 4 && (tag >>> 3) <= 7) {
+                throw new IOException("Unsupported PBF blob compression (field "
+                        + (tag >>> 3) + ").");
+            } else {
+                m.skip(tag);
+            }
+        }
+        if (raw != null) {
+            return raw;
+        }
+        if (zlibStart < 0 || rawSize < 0 || rawSize > MAX_BLOB_SIZE) {
+            throw new IOException("Invalid PBF blob.");
+        }
+        byte[] out = new byte[rawSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(blob, zlibStart, zlibEnd - zlibStart);
+            int n = 0;
+            while (n < rawSize && !inflater.finished()) {
+                int read = inflater.inflate(out, n, rawSize - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != rawSize) {
+                throw new IOException("Truncated PBF blob.");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt PBF blob.", e);
+        } finally {
+            inflater.end();
+        }
+        return out;
+    }
+
+    private static String[] readStringTable(Message m) throws IOException {
+        String[] strings = new String[16];
+        int count = 0;
+        while (m.hasNext()) {
+            int tag = m.readTag();
+            if (tag == key(1, LENGTH_DELIMITED)) {
+                if (count == strings.length) {
+                    strings = Arrays.copyOf(strings, 2 * count);
+                }
+                strings[count++] = m.readString();
+            } else {
+                m.skip(tag);
+            }
+        }
+        return Arrays.copyOf(strings, count);
+    }
+
+    /** The string table and coordinate encoding shared by every group in a block. */
+    private static final class Block {
+        final String[] strings;
+        final long granularity;
+        final long latOffset;
+        final long lonOffset;
+        private long[] refs = new long[64];
+
+        Block(String[] strings, long granularity, long latOffset, long lonOffset) {
+            this.strings = strings;
+            this.granularity = granularity;
+            this.latOffset = latOffset;
+            this.lonOffset = lonOffset;
+        }
+
+        /**
+         * Coordinates are in nanodegrees. Dividing the exact integer gives the double nearest
+         * to the true value, the same one parsing the decimal from an XML extract gives.
+         */
+        double lat(long raw) {
+            return (latOffset + granularity * raw) / 1e9;
+        }
+
+        double lon(long raw) {
+            return (lonOffset + granularity * raw) / 1e9;
+        }
+
+        String string(long index) throws IOException {
+            if (index < 0 || index >= strings.length) {
+                throw new IOException("Invalid PBF string table index " + index + ".");
+            }
+            return strings[(int) index];
+        }
+
+        /** Decodes a plain Node message. */
+        void node(Message m, OsmReader.Chunk chunk) throws IOException {
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            String name = null;
+            Message keys = null;
+            Message vals = null;
+            while (m.hasNext()) {
+                int tag = m.readTag();
+                if (tag == key(1, VARINT)) {
+                    id = zigzag(m.readVarint());
+                } else if (tag == key(2, LENGTH_DELIMITED)) {
+                    keys = m.readMessage();
+                } else if (tag == key(3, LENGTH_DELIMITED)) {
+                    vals = m.readMessage();
+                } else if (tag == key(8, VARINT)) {
+                    lat = zigzag(m.readVarint());
+                } else if (tag == key(9, VARINT)) {
+                    lon = zigzag(m.readVarint());
+                } else {
+                    m.skip(tag);
+                }
+            }
+            while (keys != null && vals != null && keys.hasNext() && vals.hasNext()) {
+                String k = string(keys.readVarint());
+                long v = vals.readVarint();
+                if (k.equals("name")) {
+                    name = string(v);
+                }
+            }
+            chunk.addNode(id, lon(lon), lat(lat), name);
+        }
+
+        /**
+         * Decodes a DenseNodes message. Ids and coordinates are delta coded; tags are one
+         * stream of key, value string indices with a 0 after each node's tags.
+         */
+        void denseNodes(Message m, OsmReader.Chunk chunk) throws IOException {
+            Message ids = null;
+            Message lats = null;
+            Message lons = null;
+            Message keysVals = null;
+            while (m.hasNext()) {
+                int tag = m.readTag();
+                if (tag == key(1, LENGTH_DELIMITED)) {
+                    ids = m.readMessage();
+                } else if (tag == key(8, LENGTH_DELIMITED)) {
+                    lats = m.readMessage();
+                } else if (tag == key(9, LENGTH_DELIMITED)) {
+                    lons = m.readMessage();
+                } else if (tag == key(10, LENGTH_DELIMITED)) {
+                    keysVals = m.readMessage();
+                } else {
+                    m.skip(tag);
+                }
+            }
+            if (ids == null) {
+                return;
+            }
+            if (lats == null || lons == null) {
+                throw new IOException("PBF dense nodes without coordinates.");
+            }
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            while (ids.hasNext()) {
+                id += zigzag(ids.readVarint());
+                lat += zigzag(lats.readVarint());
+                lon += zigzag(lons.readVarint());
+                String name = null;
+                if (keysVals != null) {
+                    while (keysVals.hasNext()) {
+                        long k = keysVals.readVarint();
+                        if (k == 0) {
+                            break;
+                        }
+                        long v = keysVals.readVarint();
+                        if (string(k).equals("name")) {
+                            name = string(v);
+                        }
+                    }
+                }
+                chunk.addNode(id, lon(lon), lat(lat), name);
+            }
+        }
+
+        /** Decodes a Way message; node refs are delta coded. */
+        void way(Message m, OsmReader.Chunk chunk) throws IOException {
+            long id = 0;
+            Message keys = null;
+            Message vals = null;
+            int refCount = 0;
+            while (m.hasNext()) {
+                int tag = m.readTag();
+                if (tag == key(1, VARINT)) {
+                    id = m.readVarint();
+                } else if (tag == key(2, LENGTH_DELIMITED)) {
+                    keys = m.readMessage();
+                } else if (tag == key(3, LENGTH_DELIMITED)) {
+                    vals = m.readMessage();
+                } else if (tag == key(8, LENGTH_DELIMITED)) {
+                    Message packed = m.readMessage();
+                    long ref = 0;
+                    while (packed.hasNext()) {
+                        ref += zigzag(packed.readVarint());
+                        if (refCount == refs.length) {
+                            refs = Arrays.copyOf(refs, 2 * refCount);
+                        }
+                        refs[refCount++] = ref;
+                    }
+                } else {
+                    m.skip(tag);
+                }
+            }
+            String highway = null;
+            String maxspeed = null;
+            String name = null;
+            while (keys != null && vals != null && keys.hasNext() && vals.hasNext()) {
+                String k = string(keys.readVarint());
+                long v = vals.readVarint();
+                if (k.equals("highway")) {
+                    highway = string(v);
+                } else if (k.equals("maxspeed")) {
+                    maxspeed = string(v);
+                } else if (k.equals("name")) {
+                    name = string(v);
+                }
+            }
+            chunk.addWay(id, highway, maxspeed, name, refs, refCount);
+        }
+    }
+
+    private static int key(int field, int wireType) {
+        return (field << 3) | wireType;
+    }
+
+    private static long zigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    /**
+     * A cursor over the bytes of one protobuf message, from pos up to limit. Nested messages
+     * and packed fields are read as sub-cursors over the same array, so nothing is copied.
+     */
+    private static final class Message {
+        final byte[] buf;
+        int pos;
+        final int limit;
+
+        Message(byte[] buf, int pos, int limit) {
+            this.buf = buf;
+            this.pos = pos;
+            this.limit = limit;
+        }
+
+        boolean hasNext() {
+            return pos < limit;
+        }
+
+        int readTag() throws IOException {
+            return (int) readVarint();
+        }
+
+        long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) {
+                    throw new IOException("Truncated PBF varint.");
+                }
+                byte b = buf[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed PBF varint.");
+        }
+
+        int readLength() throws IOException {
+            long length = readVarint();
+            if (length < 0 || length > limit - pos) {
+                throw new IOException("Truncated PBF message.");
+            }
+            return (int) length;
+        }
+
+        Message readMessage() throws IOException {
+            int length = readLength();
+            Message m = new Message(buf, pos, pos + length);
+            pos += length;
+            return m;
+        }
+
+        String readString() throws IOException {
+            int length = readLength();
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        /** Skips the value of a field with the given tag. */
+        void skip(int tag) throws IOException {
+            switch (tag & 7) {
+                case VARINT:
+                    readVarint();
+                    break;
+                case FIXED64:
+                    advance(8);
+                    break;
+                case LENGTH_DELIMITED:
+                    int length = readLength();
+                    pos += length;
+                    break;
+                case FIXED32:
+                    advance(4);
+                    break;
+                default:
+                    throw new IOException("Unsupported PBF wire type " + (tag & 7) + ".");
+            }
+        }
+
+        private void advance(int n) throws IOException {
+            if (limit - pos < n) {
+                throw new IOException("Truncated PBF message.");
+            }
+            pos += n;
+        }
+    }
+}
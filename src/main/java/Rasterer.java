@@ -14,12 +14,15 @@ public class Rasterer {
     public static final double ROOT_ULLAT = 37.892195547244356, ROOT_ULLON = -122.2998046875,
             ROOT_LRLAT = 37.82280243352756, ROOT_LRLON = -122.2119140625;
     public static final String IMGFORMAT = ".png";
+    /** Depth of the deepest tiles in the img/ pyramid; the root tile has depth 0. */
+    static final int MAX_DEPTH = 7;
+    private final String imgRoot;
+    /** The tile tree getMapRasterByQuadtree walks, built on first use. */
     private Quadtree qt;
     /** imgRoot is the name of the directory containing the images.
      *  You may not actually need this for your class. */
     public Rasterer(String imgRoot) {
-        Quadtree.Node root = new Quadtree.Node(0,ROOT_ULLAT,ROOT_ULLON,ROOT_LRLAT,ROOT_LRLON,imgRoot,8);
-        qt = new Quadtree(root,8,imgRoot);
+        this.imgRoot = imgRoot;
     }
 
     /**
@@ -54,23 +57,150 @@ public class Rasterer {
      * see REQUIRED_RASTER_REQUEST_PARAMS
      */
     public Map<String, Object> getMapRaster(Map<String, Double> params) {
-        Double queryLrlon = params.get("lrlon");
-        Double queryUllon = params.get("ullon");
-        Double queryUllat = params.get("ullat");
-        Double queryLrlat = params.get("lrlat");
-        if(queryLrlon<queryUllon || queryLrlat >queryUllat){
+        Map<String, Object> results = new HashMap<>();
+        int[] range = tileRange(params, results);
+        if (range == null) {
+            results.put("render_grid", new String[0][]);
+            return results;
+        }
+        int depth = range[0];
+        String[][] grid = new String[range[4] - range[2] + 1][range[3] - range[1] + 1];
+        for (int y = range[2]; y <= range[4]; y++) {
+            for (int x = range[1]; x <= range[3]; x++) {
+                grid[y - range[2]][x - range[1]] = tileName(depth, x, y);
+            }
+        }
+        results.put("render_grid", grid);
+        return results;
+    }
+
+    /**
+     * Answers a raster query like getMapRaster, but with the tiles as coordinates instead of
+     * file names, for clients that fetch and assemble the tiles themselves. In place of
+     * "render_grid" the result has: <br>
+     * "tile_x"       -> Number, the column of the upper left tile at its depth, counted from
+     *                   the left of the map <br>
+     * "tile_y"       -> Number, the row of the upper left tile, counted from the top <br>
+     * "tile_columns" -> Number, the number of tile columns <br>
+     * "tile_rows"    -> Number, the number of tile rows
+     */
+    public Map<String, Object> getTileRaster(Map<String, Double> params) {
+        Map<String, Object> results = new HashMap<>();
+        int[] range = tileRange(params, results);
+        if (range != null) {
+            results.put("tile_x", range[1]);
+            results.put("tile_y", range[2]);
+            results.put("tile_columns", range[3] - range[1] + 1);
+            results.put("tile_rows", range[4] - range[2] + 1);
+        }
+        return results;
+    }
+
+    /**
+     * Finds the tiles for a query box and puts their depth, bounds and query_success into
+     * results.
+     * @return {depth, first column, first row, last column, last row}, or null if no tile
+     * touches the box.
+     */
+    private static int[] tileRange(Map<String, Double> params, Map<String, Object> results) {
+        double ullon = params.get("ullon");
+        double ullat = params.get("ullat");
+        double lrlon = params.get("lrlon");
+        double lrlat = params.get("lrlat");
+        if (lrlon < ullon || lrlat > ullat) {
             System.out.println("the value of longitude and latitude is wrong");
         }
+        double lonDPP = (lrlon - ullon) / params.get("w");
+        /* Tiles touching the query box count as intersecting it, as in the quadtree walk. */
+        if (lrlon < ullon || lrlat > ullat || lrlon < ROOT_ULLON || ullon > ROOT_LRLON
+                || lrlat > ROOT_ULLAT || ullat < ROOT_LRLAT) {
+            results.put("query_success", false);
+            return null;
+        }
+        int depth = depth(lonDPP);
+        int tiles = 1 << depth;
+        double tileLon = (ROOT_LRLON - ROOT_ULLON) / tiles;
+        double tileLat = (ROOT_ULLAT - ROOT_LRLAT) / tiles;
+        int x0 = clamp((int) Math.ceil((ullon - ROOT_ULLON) / tileLon) - 1, tiles);
+        int x1 = clamp((int) Math.floor((lrlon - ROOT_ULLON) / tileLon), tiles);
+        int y0 = clamp((int) Math.ceil((ROOT_ULLAT - ullat) / tileLat) - 1, tiles);
+        int y1 = clamp((int) Math.floor((ROOT_ULLAT - lrlat) / tileLat), tiles);
+        results.put("raster_ul_lon", ROOT_ULLON + x0 * tileLon);
+        results.put("raster_ul_lat", ROOT_ULLAT - y0 * tileLat);
+        results.put("raster_lr_lon", ROOT_ULLON + (x1 + 1) * tileLon);
+        results.put("raster_lr_lat", ROOT_ULLAT - (y1 + 1) * tileLat);
+        results.put("depth", depth);
+        results.put("query_success", true);
+        return new int[]{depth, x0, y0, x1, y1};
+    }
+
+    /** Whether the pyramid has a tile in column x and row y at depth. */
+    static boolean hasTile(int depth, int x, int y) {
+        return depth >= 0 && depth <= MAX_DEPTH && x >= 0 && x < 1 << depth
+                && y >= 0 && y < 1 << depth;
+    }
+
+    /**
+     * The shallowest depth whose tiles have at most lonDPP longitude per pixel, or MAX_DEPTH
+     * if even the deepest tiles have more.
+     */
+    static int depth(double lonDPP) {
+        int depth = 0;
+        while (depth < MAX_DEPTH
+                && (ROOT_LRLON - ROOT_ULLON) / (1 << depth) / MapServer.TILE_SIZE > lonDPP) {
+            depth++;
+        }
+        return depth;
+    }
+
+    private static int clamp(int index, int tiles) {
+        return Math.max(0, Math.min(tiles - 1, index));
+    }
+
+    /**
+     * The file of the tile in column x and row y at depth, counted from the upper left. Each
+     * digit of the name picks a quadrant of the tile above, from 1 for upper left to 4 for
+     * lower right, so it is the bits of x and y interleaved from the most significant down.
+     */
+    String tileName(int depth, int x, int y) {
+        if (depth == 0) {
+            return imgRoot + "root" + IMGFORMAT;
+        }
+        StringBuilder name = new StringBuilder(imgRoot.length() + depth + IMGFORMAT.length());
+        name.append(imgRoot);
+        for (int bit = depth - 1; bit >= 0; bit--) {
+            name.append((char) ('1' + ((x >> bit) & 1) + 2 * ((y >> bit) & 1)));
+        }
+        return name.append(IMGFORMAT).toString();
+    }
+
+    /**
+     * Answers a raster query by walking the tile quadtree, as getMapRaster did before it
+     * computed tile ranges directly. Kept as the reference getMapRaster is checked against.
+     */
+    Map<String, Object> getMapRasterByQuadtree(Map<String, Double> params) {
+        Double queryLrlon = params.get("lrlon");
+        Double queryUllon = params.get("ullon");
         Double width = params.get("w");
         Double queryxDisPerPixel = (queryLrlon-queryUllon)/width;
         Map<String, Object> results = new HashMap<>();
         List<List<Quadtree.Node>> tempLst= new ArrayList<>();
-        qt.getRaster(params,qt.root,queryxDisPerPixel,results,tempLst);
+        Quadtree tree = quadtree();
+        tree.getRaster(params,tree.root,queryxDisPerPixel,results,tempLst);
         String[][] filesName = convertNodesListToArray(tempLst);
         results.put("render_grid",filesName);
         return results;
     }
 
+    private synchronized Quadtree quadtree() {
+        if (qt == null) {
+            Quadtree.Node root = new Quadtree.Node(0,ROOT_ULLAT,ROOT_ULLON,ROOT_LRLAT,ROOT_LRLON,
+                    imgRoot,MAX_DEPTH + 1);
+            qt = new Quadtree(root,MAX_DEPTH + 1,imgRoot);
+        }
+        return qt;
+    }
+
     private String[][] convertNodesListToArray(List<List<Quadtree.Node>> lst){
         String[][] result = new String[lst.size()][];
         for(int i = 0; i<lst.size();i++){
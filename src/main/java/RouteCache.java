@@ -0,0 +1,144 @@
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of computed routes, keyed by the snapped start and end vertices and the
+ * routing profile, since the same two vertices have a different route for each profile.
+ * Entries also expire after a fixed time to live, and are stale as soon as the road
+ * overrides they were computed under (see EdgeOverlay) are replaced by a newer version. Paths are stored as primitive id arrays
+ * and copied into a fresh list on every hit, so callers may modify what they get back.
+ *
+ * A cache belongs to one GraphDB (see GraphDB.setRouteCache), so loading a new graph
+ * automatically starts with an empty cache. The map itself is guarded by the cache's
+ * monitor; routes are computed outside of it, so a slow search never blocks other threads.
+ */
+class RouteCache {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<Key, CachedRoute> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Key {
+        final int s;
+        final int t;
+        final RoutingProfile profile;
+
+        Key(int s, int t, RoutingProfile profile) {
+            this.s = s;
+            this.t = t;
+            this.profile = profile;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return s == other.s && t == other.t && profile == other.profile;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * s + t) * 31 + profile.ordinal();
+        }
+    }
+
+    private static class CachedRoute {
+        final long[] path;
+        final long expiresAt;
+        final long overlayVersion;
+
+        CachedRoute(long[] path, long expiresAt, long overlayVersion) {
+            this.path = path;
+            this.expiresAt = expiresAt;
+            this.overlayVersion = overlayVersion;
+        }
+    }
+
+    /**
+     * @param maxEntries Largest number of routes kept; the least recently used is evicted.
+     * @param ttlSeconds How long a route stays valid after it was computed.
+     */
+    RouteCache(int maxEntries, long ttlSeconds) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.entries = new LinkedHashMap<Key, CachedRoute>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedRoute> eldest) {
+                if (size() > RouteCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached route from vertex s to vertex t for profile under the given overlay
+     * version, or null on a miss.
+     */
+    LinkedList<Long> get(int s, int t, RoutingProfile profile, long overlayVersion) {
+        Key key = new Key(s, t, profile);
+        CachedRoute entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && (System.nanoTime() - entry.expiresAt > 0
+                    || entry.overlayVersion != overlayVersion)) {
+                entries.remove(key);
+                evictions.incrementAndGet();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        LinkedList<Long> route = new LinkedList<>();
+        for (long id : entry.path) {
+            route.add(id);
+        }
+        return route;
+    }
+
+    /** Caches route as the path from vertex s to vertex t for profile under an overlay version. */
+    void put(int s, int t, RoutingProfile profile, long overlayVersion, LinkedList<Long> route) {
+        long[] path = new long[route.size()];
+        int i = 0;
+        for (long id : route) {
+            path[i++] = id;
+        }
+        CachedRoute entry = new CachedRoute(path, System.nanoTime() + ttlNanos, overlayVersion);
+        synchronized (this) {
+            entries.put(new Key(s, t, profile), entry);
+        }
+    }
+
+    /** Drops every cached route. */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    long evictions() {
+        return evictions.get();
+    }
+}
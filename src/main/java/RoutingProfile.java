@@ -0,0 +1,82 @@
+/**
+ * How Router weighs the roads of a shared CompactGraph. A profile is a set of allowed
+ * Highway types plus a weight function over the per-edge length, type and speed limit, so
+ * adding a profile costs no memory per edge.
+ *
+ * DISTANCE minimises road length and is what every route used before profiles existed. The
+ * other profiles minimise travel time: each edge weighs its length divided by the speed the
+ * profile travels at on it, which is the posted maxspeed (or the type's default) capped at the
+ * profile's top speed. Travel-time weights are in degrees per km/h, so they are proportional
+ * to hours but not equal to them.
+ */
+public enum RoutingProfile {
+    /** Shortest road length over every road in the graph. */
+    DISTANCE(0, Highway.values()),
+    /** Fastest route by car, using speed limits. */
+    CAR(130, Highway.values()),
+    /** Fastest route by bicycle, kept off motorways and trunk roads. */
+    BIKE(18, Highway.PRIMARY, Highway.SECONDARY, Highway.TERTIARY, Highway.UNCLASSIFIED,
+            Highway.RESIDENTIAL, Highway.LIVING_STREET, Highway.PRIMARY_LINK,
+            Highway.SECONDARY_LINK, Highway.TERTIARY_LINK),
+    /** Fastest route on foot, kept off motorways and trunk roads. */
+    FOOT(5, Highway.PRIMARY, Highway.SECONDARY, Highway.TERTIARY, Highway.UNCLASSIFIED,
+            Highway.RESIDENTIAL, Highway.LIVING_STREET, Highway.PRIMARY_LINK,
+            Highway.SECONDARY_LINK, Highway.TERTIARY_LINK);
+
+    /** Bit h.code() is set for every allowed Highway h. */
+    private final int allowed;
+    /** Top speed in km/h, or 0 for the length-based DISTANCE profile. */
+    private final int topSpeed;
+
+    RoutingProfile(int topSpeed, Highway... allowed) {
+        int mask = 0;
+        for (Highway h : allowed) {
+            mask |= 1 << h.code();
+        }
+        this.allowed = mask;
+        this.topSpeed = topSpeed;
+    }
+
+    /** Whether every edge of every graph is usable with this profile. */
+    boolean allowsAll() {
+        return allowed == (1 << Highway.values().length) - 1;
+    }
+
+    /** Whether the edge graph.targets[e] may be used. */
+    boolean allows(CompactGraph graph, int e) {
+        return (allowed >>> graph.highways[e] & 1) != 0;
+    }
+
+    /** Whether at least one edge of vertex v may be used, so that a route can start there. */
+    boolean usable(CompactGraph graph, int v) {
+        for (int e = graph.offsets[v]; e < graph.offsets[v + 1]; e++) {
+            if (allows(graph, e)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The cost of edge e, or positive infinity if the profile may not use it. */
+    double weight(CompactGraph graph, int e) {
+        if (!allows(graph, e)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (topSpeed == 0) {
+            return graph.weights[e];
+        }
+        int speed = graph.speeds[e] & 0xFF;
+        if (speed == 0) {
+            speed = Highway.fromCode(graph.highways[e]).defaultSpeed;
+        }
+        return graph.weights[e] / Math.min(speed, topSpeed);
+    }
+
+    /**
+     * Factor turning a lower bound on road length into a lower bound on this profile's cost.
+     * No edge is travelled faster than the top speed, so dividing by it keeps A* admissible.
+     */
+    double heuristicScale() {
+        return topSpeed == 0 ? 1.0 : 1.0 / topSpeed;
+    }
+}
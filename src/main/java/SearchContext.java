@@ -0,0 +1,93 @@
+import java.util.Arrays;
+
+/**
+ * Reusable per-thread state for one direction of a shortest-path search over a CompactGraph:
+ * tentative distances, parent pointers, settled flags and the priority queue. Everything is
+ * held in primitive arrays sized to the graph, and reset() only clears the vertices the last
+ * search touched, so back-to-back searches produce no garbage.
+ *
+ * A context is bound to one graph and must not be shared between threads.
+ */
+class SearchContext {
+    final CompactGraph graph;
+    final double[] dist;
+    final int[] parent;
+    final boolean[] settled;
+    final IndexedHeap heap;
+    /** Vertices whose dist, parent or settled entry differ from the reset state. */
+    private int[] touched;
+    private int touchedCount;
+    /** Vertices passed to settle(), in the order they were settled. */
+    private int[] order;
+    private int orderCount;
+
+    SearchContext(CompactGraph graph) {
+        int n = graph.size();
+        this.graph = graph;
+        this.dist = new double[n];
+        this.parent = new int[n];
+        this.settled = new boolean[n];
+        this.heap = new IndexedHeap(n);
+        this.touched = new int[Math.max(1, Math.min(n, 1024))];
+        this.order = new int[touched.length];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        Arrays.fill(parent, -1);
+    }
+
+    /** Restores the initial state for every vertex the previous search touched. */
+    void reset() {
+        for (int i = 0; i < touchedCount; i++) {
+            int v = touched[i];
+            dist[v] = Double.POSITIVE_INFINITY;
+            parent[v] = -1;
+            settled[v] = false;
+        }
+        touchedCount = 0;
+        orderCount = 0;
+        heap.clear();
+    }
+
+    /** Records a tentative distance and parent for v, remembering v for the next reset. */
+    void update(int v, double d, int p) {
+        if (dist[v] == Double.POSITIVE_INFINITY && parent[v] < 0) {
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, touched.length * 2);
+            }
+            touched[touchedCount++] = v;
+        }
+        dist[v] = d;
+        parent[v] = p;
+    }
+
+    /**
+     * Marks v as settled and appends it to the settle order. Searches that need the order
+     * call this instead of setting settled[v] directly.
+     */
+    void settle(int v) {
+        settled[v] = true;
+        if (orderCount == order.length) {
+            order = Arrays.copyOf(order, order.length * 2);
+        }
+        order[orderCount++] = v;
+    }
+
+    /** Number of vertices passed to settle() by the last search. */
+    int settledCount() {
+        return orderCount;
+    }
+
+    /** The i-th vertex passed to settle() by the last search. */
+    int settled(int i) {
+        return order[i];
+    }
+
+    /** Number of vertices reached by the last search. */
+    int touchedCount() {
+        return touchedCount;
+    }
+
+    /** The i-th vertex reached by the last search, in the order they were first reached. */
+    int touched(int i) {
+        return touched[i];
+    }
+}
@@ -0,0 +1,143 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of decoded tile images, keyed by file path. The bound is a byte budget
+ * rather than an entry count, and each tile is charged the size of its decoded pixel buffer,
+ * so the cache holds as many tiles as fit whatever their depth or colour model.
+ *
+ * Images are decoded outside the cache's monitor, so a slow read never blocks other
+ * threads; two threads missing on the same tile at once may both decode it. Cached images
+ * are shared between requests and must not be drawn on. The cache is not tied to a dataset,
+ * so it stays warm across reloads; invalidateChanged drops the tiles whose files have been
+ * rewritten since they were read.
+ */
+class TileCache {
+    private final long maxBytes;
+    private final LinkedHashMap<String, CachedTile> entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class CachedTile {
+        final BufferedImage image;
+        final long bytes;
+        final long lastModified;
+
+        CachedTile(BufferedImage image, long bytes, long lastModified) {
+            this.image = image;
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * @param maxBytes Largest total size of the decoded images kept; the least recently used
+     *                 are evicted to stay below it. Zero disables caching.
+     */
+    TileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the decoded image at path, reading and caching it on a miss.
+     * @throws IOException If the file cannot be read or decoded.
+     */
+    BufferedImage get(String path) throws IOException {
+        CachedTile entry;
+        synchronized (this) {
+            entry = entries.get(path);
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry.image;
+        }
+        misses.incrementAndGet();
+        File file = new File(path);
+        long lastModified = file.lastModified();
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("No image decoder for " + path + ".");
+        }
+        long size = sizeOf(image);
+        if (size <= maxBytes) {
+            synchronized (this) {
+                CachedTile previous = entries.put(path, new CachedTile(image, size, lastModified));
+                if (previous != null) {
+                    bytes -= previous.bytes;
+                }
+                bytes += size;
+                evict();
+            }
+        }
+        return image;
+    }
+
+    /** Drops every tile whose file has changed or disappeared since it was cached. */
+    synchronized void invalidateChanged() {
+        Iterator<Map.Entry<String, CachedTile>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, CachedTile> e = it.next();
+            if (new File(e.getKey()).lastModified() != e.getValue().lastModified) {
+                bytes -= e.getValue().bytes;
+                it.remove();
+            }
+        }
+    }
+
+    /** Drops every cached tile. */
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /** Evicts least recently used tiles until the budget is met. */
+    private void evict() {
+        Iterator<CachedTile> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().bytes;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /** Size in bytes of the pixel buffer of image. */
+    static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    long evictions() {
+        return evictions.get();
+    }
+}
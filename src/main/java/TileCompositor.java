@@ -0,0 +1,107 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.util.stream.IntStream;
+
+/**
+ * Assembles a grid of tiles into one TYPE_INT_RGB image. Tiles are fetched, decoded and
+ * copied in parallel on the common fork-join pool, each straight into its own rectangle of
+ * the image's int[] pixel array. No two tiles share a pixel, so the copies need no locking,
+ * and no Graphics object is shared between threads.
+ *
+ * Almost all tiles are indexed PNGs, with 8-bit or packed 1, 2 or 4-bit indices, which are
+ * copied through their colour table; other tiles go through BufferedImage.getRGB, which
+ * handles any colour model but converts each pixel through it.
+ */
+class TileCompositor {
+    private final TileCache cache;
+    private final int tileSize;
+
+    TileCompositor(TileCache cache, int tileSize) {
+        this.cache = cache;
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Draws the tiles named in grid, row by row, into a new image tileSize pixels per tile.
+     * A tile that cannot be read is left black.
+     */
+    BufferedImage composite(String[][] grid) {
+        int rows = grid.length;
+        int cols = grid[0].length;
+        BufferedImage img = new BufferedImage(cols * tileSize, rows * tileSize,
+                BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        int width = img.getWidth();
+        IntStream.range(0, rows * cols).parallel().forEach(i -> {
+            int r = i / cols;
+            int c = i % cols;
+            BufferedImage tile;
+            try {
+                tile = cache.get(grid[r][c]);
+            } catch (IOException | NullPointerException e) {
+                e.printStackTrace();
+                return;
+            }
+            copy(tile, pixels, width, c * tileSize, r * tileSize);
+        });
+        return img;
+    }
+
+    /** Copies tile into the width-pixel-wide RGB pixels with its upper left at (x, y). */
+    private void copy(BufferedImage tile, int[] pixels, int width, int x, int y) {
+        int w = Math.min(tile.getWidth(), tileSize);
+        int h = Math.min(tile.getHeight(), tileSize);
+        SampleModel model = tile.getSampleModel();
+        boolean indexed = tile.getColorModel() instanceof IndexColorModel
+                && tile.getRaster().getDataBuffer() instanceof DataBufferByte
+                && tile.getRaster().getSampleModelTranslateX() == 0
+                && tile.getRaster().getSampleModelTranslateY() == 0;
+        if (indexed && model instanceof PixelInterleavedSampleModel
+                && model.getNumBands() == 1) {
+            PixelInterleavedSampleModel bytes = (PixelInterleavedSampleModel) model;
+            int[] rgb = colors(tile);
+            byte[] data = ((DataBufferByte) tile.getRaster().getDataBuffer()).getData();
+            int stride = bytes.getScanlineStride();
+            int step = bytes.getPixelStride();
+            int base = bytes.getBandOffsets()[0];
+            for (int row = 0; row < h; row++) {
+                int src = base + row * stride;
+                int dst = (y + row) * width + x;
+                for (int col = 0; col < w; col++) {
+                    pixels[dst + col] = rgb[data[src + col * step] & 0xFF];
+                }
+            }
+        } else if (indexed && model instanceof MultiPixelPackedSampleModel) {
+            MultiPixelPackedSampleModel packed = (MultiPixelPackedSampleModel) model;
+            int[] rgb = colors(tile);
+            byte[] data = ((DataBufferByte) tile.getRaster().getDataBuffer()).getData();
+            int stride = packed.getScanlineStride();
+            int bits = packed.getPixelBitStride();
+            int offset = packed.getDataBitOffset();
+            int mask = (1 << bits) - 1;
+            for (int row = 0; row < h; row++) {
+                int dst = (y + row) * width + x;
+                for (int col = 0; col < w; col++) {
+                    int bit = offset + col * bits;
+                    int b = data[row * stride + (bit >> 3)] & 0xFF;
+                    pixels[dst + col] = rgb[(b >> (8 - bits - (bit & 7))) & mask];
+                }
+            }
+        } else {
+            tile.getRGB(0, 0, w, h, pixels, y * width + x, width);
+        }
+    }
+
+    /** The colour table of an indexed tile, padded to 256 entries. */
+    private static int[] colors(BufferedImage tile) {
+        int[] rgb = new int[256];
+        ((IndexColorModel) tile.getColorModel()).getRGBs(rgb);
+        return rgb;
+    }
+}
@@ -0,0 +1,73 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks component labelling and largest-component pruning on a small graph made of a
+ * four-vertex square, a two-vertex road island and a path of three.
+ */
+public class ConnectedComponentsTest {
+    private CompactGraph graph;
+    private ConnectedComponents components;
+
+    @Before
+    public void setUp() {
+        long[] ids = {10, 11, 12, 13, 14, 15, 16, 17, 18};
+        double[] lons = new double[ids.length];
+        double[] lats = new double[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            lons[i] = -122.26 + i * 0.001;
+            lats[i] = 37.87 + (i % 2) * 0.001;
+        }
+        /* Square 0-1-3-2-0, island 4-8, path 5-6-7. */
+        int[][] adj = {{1, 2}, {0, 3}, {0, 3}, {1, 2}, {8}, {6}, {5, 7}, {6}, {4}};
+        int[] offsets = new int[ids.length + 1];
+        for (int i = 0; i < ids.length; i++) {
+            offsets[i + 1] = offsets[i] + adj[i].length;
+        }
+        int[] targets = new int[offsets[ids.length]];
+        for (int i = 0; i < ids.length; i++) {
+            System.arraycopy(adj[i], 0, targets, offsets[i], adj[i].length);
+        }
+        graph = new CompactGraph(ids, lons, lats, offsets, targets);
+        components = new ConnectedComponents(graph);
+    }
+
+    @Test
+    public void testComponentsAreNumberedBySize() {
+        assertEquals(3, components.count());
+        assertEquals(4, components.size(0));
+        assertEquals(3, components.size(1));
+        assertEquals(2, components.size(2));
+        assertArrayEquals(new int[]{0, 1, 2, 3}, components.vertices(0));
+        assertArrayEquals(new int[]{5, 6, 7}, components.vertices(1));
+        assertArrayEquals(new int[]{4, 8}, components.vertices(2));
+    }
+
+    @Test
+    public void testConnected() {
+        assertTrue(components.connected(0, 3));
+        assertTrue(components.connected(4, 8));
+        assertFalse(components.connected(0, 4));
+        assertFalse(components.connected(7, 8));
+    }
+
+    @Test
+    public void testLargestComponentSubgraph() {
+        CompactGraph largest = graph.component(components, 0);
+        assertEquals(4, largest.size());
+        assertEquals(8, largest.edgeCount());
+        assertEquals(-1, largest.indexOf(14));
+        for (int v = 0; v < largest.size(); v++) {
+            int original = graph.indexOf(largest.ids[v]);
+            assertEquals(graph.lons[original], largest.lons[v], 0);
+            for (int e = largest.offsets[v]; e < largest.offsets[v + 1]; e++) {
+                long neighbor = largest.ids[largest.targets[e]];
+                int oe = graph.offsets[original] + (e - largest.offsets[v]);
+                assertEquals(graph.ids[graph.targets[oe]], neighbor);
+            }
+        }
+        assertEquals(1, new ConnectedComponents(largest).count());
+    }
+}
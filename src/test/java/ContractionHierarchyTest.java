@@ -0,0 +1,144 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks contraction hierarchy queries, path unpacking and the bucket distance matrix against
+ * plain Dijkstra on the jittered grid of RouterTest, whose shortest paths are unique.
+ */
+public class ContractionHierarchyTest {
+    private static final double EPSILON = 1e-12;
+    private CompactGraph graph;
+    private ContractionHierarchy hierarchy;
+
+    @Before
+    public void setUp() {
+        graph = RouterTest.grid(0.0004, 0.25, 53);
+        hierarchy = ContractionHierarchy.build(graph);
+    }
+
+    @Test
+    public void testQueryAndUnpackMatchDijkstra() {
+        int n = graph.size();
+        SearchContext forward = new SearchContext(graph);
+        SearchContext backward = new SearchContext(graph);
+        int[] parent = new int[n];
+        for (int s = 0; s < n; s++) {
+            double[] expected = RouterTest.dijkstra(graph, s, parent);
+            for (int t = 0; t < n; t++) {
+                forward.reset();
+                backward.reset();
+                int meet = hierarchy.query(forward, backward, s, t);
+                String err = "From " + s + " to " + t;
+                if (expected[t] == Double.POSITIVE_INFINITY) {
+                    assertEquals(err, -1, meet);
+                    continue;
+                }
+                assertEquals(err, expected[t], forward.dist[meet] + backward.dist[meet],
+                        EPSILON);
+                LinkedList<Long> path = new LinkedList<>();
+                for (int v = t; v >= 0; v = parent[v]) {
+                    path.addFirst(graph.ids[v]);
+                }
+                assertEquals(err, path, hierarchy.unpackPath(forward, backward, meet));
+            }
+        }
+    }
+
+    @Test
+    public void testDistanceMatrixMatchesDijkstra() {
+        int n = graph.size();
+        int[] sources = {0, 7, 20, 35, n - 2};
+        int[] targets = new int[n];
+        for (int t = 0; t < n; t++) {
+            targets[t] = t;
+        }
+        double[][] actual = hierarchy.distanceMatrix(sources, targets);
+        for (int i = 0; i < sources.length; i++) {
+            double[] expected = RouterTest.dijkstra(graph, sources[i]);
+            for (int t = 0; t < n; t++) {
+                assertEquals("From " + sources[i] + " to " + t, expected[t], actual[i][t],
+                        EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void testRouterUsesHierarchy() {
+        GraphDB g = new GraphDB(graph, new HashMap<>(), Collections.emptyList());
+        g.setContractionHierarchy(hierarchy);
+        double[] expected = RouterTest.dijkstra(graph, 3);
+        for (int t = 0; t < graph.size() - 2; t++) {
+            LinkedList<Long> path = Router.shortestPath(g, graph.lons[3], graph.lats[3],
+                    graph.lons[t], graph.lats[t], Router.Algorithm.CONTRACTION_HIERARCHY);
+            if (expected[t] == Double.POSITIVE_INFINITY) {
+                assertTrue(path.isEmpty());
+            } else {
+                assertEquals(expected[t], RouterTest.length(graph, path), EPSILON);
+            }
+        }
+    }
+
+    private File written() throws IOException {
+        File file = File.createTempFile("hierarchy", ".ch");
+        file.deleteOnExit();
+        hierarchy.write(file.getPath());
+        return file;
+    }
+
+    @Test
+    public void testReadsBackWhatWasWritten() throws IOException {
+        ContractionHierarchy read = ContractionHierarchy.read(written().getPath(), graph);
+        assertArrayEquals(hierarchy.rank, read.rank);
+        assertArrayEquals(hierarchy.upOffsets, read.upOffsets);
+        assertArrayEquals(hierarchy.upTargets, read.upTargets);
+        assertArrayEquals(hierarchy.upWeights, read.upWeights, 0);
+        assertArrayEquals(hierarchy.upMiddle, read.upMiddle);
+    }
+
+    @Test
+    public void testTruncatedFileFails() throws IOException {
+        File file = written();
+        byte[] data = Files.readAllBytes(file.toPath());
+        for (int length = 0; length < data.length; length++) {
+            Files.write(file.toPath(), Arrays.copyOf(data, length));
+            try {
+                ContractionHierarchy.read(file.getPath(), graph);
+                fail("Read a hierarchy cut off after " + length + " bytes.");
+            } catch (IOException expected) {
+                /* Expected. */
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptFileFails() throws IOException {
+        File file = written();
+        byte[] data = Files.readAllBytes(file.toPath());
+        /* n, m, the first rank and the first up target. */
+        int n = graph.size();
+        for (int offset : new int[]{16, 20, 24, 24 + 8 * n + 4}) {
+            for (int value : new int[]{-5, Integer.MAX_VALUE}) {
+                byte[] corrupt = data.clone();
+                ByteBuffer.wrap(corrupt).putInt(offset, value);
+                Files.write(file.toPath(), corrupt);
+                try {
+                    ContractionHierarchy.read(file.getPath(), graph);
+                    fail("Read a hierarchy with " + value + " at byte " + offset + ".");
+                } catch (IOException expected) {
+                    /* Expected. */
+                }
+            }
+        }
+    }
+}
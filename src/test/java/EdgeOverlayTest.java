@@ -0,0 +1,125 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks factor validation, stacking, clearing and remapping of road overrides on a path
+ * 0-1-2-3 with ids 100 to 103.
+ */
+public class EdgeOverlayTest {
+    private static final double[] LONS = {-122.260, -122.259, -122.258, -122.257, -122.256};
+    private static final double[] LATS = {37.870, 37.870, 37.871, 37.871, 37.872};
+
+    private CompactGraph graph;
+
+    @Before
+    public void setUp() {
+        graph = RouterTest.build(slice(LONS, 4), slice(LATS, 4), edges(0, 1, 1, 2, 2, 3));
+    }
+
+    private static double[] slice(double[] values, int n) {
+        double[] result = new double[n];
+        System.arraycopy(values, 0, result, 0, n);
+        return result;
+    }
+
+    private static List<int[]> edges(int... ends) {
+        List<int[]> edges = new ArrayList<>();
+        for (int i = 0; i < ends.length; i += 2) {
+            edges.add(new int[]{ends[i], ends[i + 1]});
+        }
+        return edges;
+    }
+
+    /** The adjacency entry of g from the vertex with id v to the one with id w. */
+    private static int edge(CompactGraph g, long v, long w) {
+        int from = g.indexOf(v);
+        int to = g.indexOf(w);
+        for (int e = g.offsets[from]; e < g.offsets[from + 1]; e++) {
+            if (g.targets[e] == to) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /** The factor overlay applies to edge e, or 1 if it does not override it. */
+    private static double factor(EdgeOverlay overlay, int e) {
+        return overlay.weight(e, 1.0);
+    }
+
+    @Test
+    public void testRejectsFactorsBelowOne() {
+        int e = edge(graph, 100, 101);
+        for (double f : new double[]{0.5, 0, -2, Double.NaN, Double.NEGATIVE_INFINITY}) {
+            try {
+                EdgeOverlay.EMPTY.with(new int[]{e}, new double[]{f});
+                fail("Accepted factor " + f + ".");
+            } catch (IllegalArgumentException expected) {
+                /* Expected. */
+            }
+        }
+        EdgeOverlay closed = EdgeOverlay.EMPTY.with(new int[]{e},
+                new double[]{Double.POSITIVE_INFINITY});
+        assertEquals(Double.POSITIVE_INFINITY, closed.weight(e, 2.0), 0);
+        assertEquals(2.0, closed.weight(edge(graph, 101, 100), 2.0), 0);
+    }
+
+    @Test
+    public void testChangesStack() {
+        int a = edge(graph, 100, 101);
+        int b = edge(graph, 101, 102);
+        int c = edge(graph, 102, 103);
+        EdgeOverlay first = EdgeOverlay.EMPTY.with(new int[]{a, b}, new double[]{2, 3});
+        EdgeOverlay second = first.with(new int[]{b, c}, new double[]{5, 7});
+        assertEquals(1, first.version);
+        assertEquals(2, second.version);
+        assertEquals(3, second.size());
+        assertEquals(2, factor(second, a), 0);
+        assertEquals(5, factor(second, b), 0);
+        assertEquals(7, factor(second, c), 0);
+        /* Earlier versions are unchanged. */
+        assertEquals(3, factor(first, b), 0);
+        assertEquals(1, factor(first, c), 0);
+        assertTrue(EdgeOverlay.EMPTY.isEmpty());
+
+        /* A factor of 1 removes the override. */
+        EdgeOverlay third = second.with(new int[]{a}, new double[]{1});
+        assertEquals(2, third.size());
+        assertEquals(1, factor(third, a), 0);
+        assertEquals(5, factor(third, b), 0);
+    }
+
+    @Test
+    public void testClearedStartsOverAtNextVersion() {
+        EdgeOverlay overlay = EdgeOverlay.EMPTY.with(new int[]{edge(graph, 100, 101)},
+                new double[]{4});
+        EdgeOverlay cleared = overlay.cleared();
+        assertTrue(cleared.isEmpty());
+        assertEquals(overlay.version + 1, cleared.version);
+        assertEquals(1, factor(cleared, edge(graph, 100, 101)), 0);
+        assertEquals(4, factor(overlay, edge(graph, 100, 101)), 0);
+    }
+
+    @Test
+    public void testRemapFollowsNodeIds() {
+        EdgeOverlay overlay = EdgeOverlay.EMPTY.with(
+                new int[]{edge(graph, 100, 101), edge(graph, 101, 100), edge(graph, 102, 103)},
+                new double[]{2, Double.POSITIVE_INFINITY, 3});
+        /* A new vertex 104 joined to 100 shifts every edge index; segment 102-103 is gone. */
+        CompactGraph next = RouterTest.build(LONS, LATS, edges(0, 4, 0, 1, 1, 2, 4, 2));
+        assertNotEquals(edge(graph, 101, 100), edge(next, 101, 100));
+
+        EdgeOverlay remapped = overlay.remap(graph, next);
+        assertTrue(remapped.version > overlay.version);
+        assertEquals(2, remapped.size());
+        assertEquals(2, factor(remapped, edge(next, 100, 101)), 0);
+        assertEquals(Double.POSITIVE_INFINITY, factor(remapped, edge(next, 101, 100)), 0);
+        assertEquals(1, factor(remapped, edge(next, 101, 102)), 0);
+        assertEquals(1, factor(remapped, edge(next, 100, 104)), 0);
+    }
+}
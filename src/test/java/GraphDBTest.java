@@ -0,0 +1,56 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/** Checks that GraphDB reports unreadable files and empty graphs instead of carrying on. */
+public class GraphDBTest {
+    private static String write(String xml) throws IOException {
+        File file = File.createTempFile("extract", ".osm");
+        file.deleteOnExit();
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+
+    @Test
+    public void testMissingFileFails() {
+        String path = new File("no-such-extract.osm").getAbsolutePath();
+        try {
+            new GraphDB(path);
+            fail("Read a file that does not exist.");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(path));
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testMalformedFileFails() throws IOException {
+        String path = write("<osm><node id=\"1\" lat=\"37.87\" lon=\"-122.26\"></osm>");
+        try {
+            GraphDB.openForChanges(path);
+            fail("Read a malformed file.");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(path));
+        }
+    }
+
+    @Test
+    public void testEmptyFileGivesEmptyGraph() throws IOException {
+        GraphDB g = new GraphDB(write("<osm version=\"0.6\"></osm>"));
+        assertEquals(0, g.graph().size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosestOnEmptyGraphFails() {
+        CompactGraph empty = RouterTest.build(new double[0], new double[0],
+                Collections.emptyList());
+        new GraphDB(empty, new HashMap<>(), Collections.emptyList()).closest(-122.26, 37.87);
+    }
+}
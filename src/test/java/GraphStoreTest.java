@@ -0,0 +1,104 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that graph snapshots read back as written, and that truncated, corrupt and outdated
+ * snapshots are reported instead of read.
+ */
+public class GraphStoreTest {
+    private byte[] snapshot;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        Map<Long, String> wayNames = new HashMap<>();
+        wayNames.put(7L, "Hearst Avenue");
+        List<GraphDB.Location> locations = new ArrayList<>();
+        locations.add(new GraphDB.Location(101, -122.26, 37.87, "Top Dog"));
+        GraphDB g = new GraphDB(RouterTest.grid(0.0004, 0.25, 61), wayNames, locations);
+        file = File.createTempFile("graph", ".graph");
+        file.deleteOnExit();
+        GraphStore.write(g, file.getPath());
+        snapshot = Files.readAllBytes(file.toPath());
+    }
+
+    private GraphDB read(byte[] data) throws IOException {
+        Files.write(file.toPath(), data);
+        return GraphStore.read(file.getPath());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        CompactGraph expected = RouterTest.grid(0.0004, 0.25, 61);
+        GraphDB g = read(snapshot);
+        assertArrayEquals(expected.ids, g.graph().ids);
+        assertArrayEquals(expected.lons, g.graph().lons, 0);
+        assertArrayEquals(expected.offsets, g.graph().offsets);
+        assertArrayEquals(expected.targets, g.graph().targets);
+        assertEquals("Hearst Avenue", g.wayNames().get(7L));
+        assertEquals("Top Dog", g.locations().get(0).name);
+    }
+
+    @Test
+    public void testEveryTruncationFails() {
+        for (int length = 0; length < snapshot.length; length++) {
+            try {
+                read(Arrays.copyOf(snapshot, length));
+                fail("Read a snapshot cut off after " + length + " bytes.");
+            } catch (IOException expected) {
+                /* Expected. */
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptCountsFail() {
+        /* n, m, the way name count and the first string length. */
+        int n = ByteBuffer.wrap(snapshot).getInt(8);
+        int m = ByteBuffer.wrap(snapshot).getInt(12);
+        int ways = 16 + 28 * n + 4 + 6 * m;
+        for (int offset : new int[]{8, 12, ways, ways + 12}) {
+            for (int value : new int[]{-1, Integer.MAX_VALUE}) {
+                byte[] data = snapshot.clone();
+                ByteBuffer.wrap(data).putInt(offset, value);
+                try {
+                    read(data);
+                    fail("Read a snapshot with " + value + " at byte " + offset + ".");
+                } catch (IOException expected) {
+                    /* Expected. */
+                }
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTargetOutOfRangeFails() throws IOException {
+        int n = ByteBuffer.wrap(snapshot).getInt(8);
+        byte[] data = snapshot.clone();
+        ByteBuffer.wrap(data).putInt(16 + 28 * n + 4, n);
+        read(data);
+    }
+
+    @Test
+    public void testOlderSnapshotIsStale() throws IOException {
+        File source = File.createTempFile("extract", ".osm");
+        source.deleteOnExit();
+        assertTrue(source.setLastModified(file.lastModified() + 10000));
+        assertTrue(GraphStore.isStale(file.getPath(), source.getPath()));
+        assertTrue(source.setLastModified(file.lastModified() - 10000));
+        assertFalse(GraphStore.isStale(file.getPath(), source.getPath()));
+        assertFalse(GraphStore.isStale(file.getPath(), source.getPath() + ".missing"));
+    }
+}
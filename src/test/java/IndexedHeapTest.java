@@ -0,0 +1,97 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks poll order, decrease-key and reuse after clear of the indexed heap behind every
+ * search.
+ */
+public class IndexedHeapTest {
+
+    @Test
+    public void testPollsInKeyOrder() {
+        Random r = new Random(41);
+        int n = 1000;
+        IndexedHeap heap = new IndexedHeap(n);
+        double[] keys = new double[n];
+        for (int v = 0; v < n; v++) {
+            keys[v] = r.nextDouble();
+            heap.push(v, keys[v]);
+        }
+        assertEquals(n, heap.size());
+        double[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < n; i++) {
+            assertEquals(sorted[i], heap.peekKey(), 0);
+            int v = heap.poll();
+            assertEquals(sorted[i], keys[v], 0);
+            assertFalse(heap.contains(v));
+        }
+        assertTrue(heap.isEmpty());
+    }
+
+    @Test
+    public void testPushLowersKeyButNeverRaisesIt() {
+        IndexedHeap heap = new IndexedHeap(4);
+        heap.push(0, 5);
+        heap.push(1, 3);
+        heap.push(2, 4);
+        heap.push(3, 6);
+        heap.push(3, 1);
+        heap.push(1, 10);
+        assertEquals(4, heap.size());
+        assertEquals(1, heap.peekKey(), 0);
+        assertEquals(3, heap.poll());
+        assertEquals(3, heap.peekKey(), 0);
+        assertEquals(1, heap.poll());
+        assertEquals(2, heap.poll());
+        assertEquals(0, heap.poll());
+        assertTrue(heap.isEmpty());
+    }
+
+    @Test
+    public void testClearAllowsReuse() {
+        IndexedHeap heap = new IndexedHeap(3);
+        heap.push(0, 2);
+        heap.push(1, 1);
+        heap.clear();
+        assertTrue(heap.isEmpty());
+        assertFalse(heap.contains(0));
+        assertFalse(heap.contains(1));
+        heap.push(1, 7);
+        heap.push(2, 3);
+        assertEquals(2, heap.poll());
+        assertEquals(1, heap.poll());
+    }
+
+    @Test
+    public void testSearchContextOnEmptyGraph() {
+        CompactGraph empty = new CompactGraph(new long[0], new double[0], new double[0],
+                new int[1], new int[0]);
+        SearchContext context = new SearchContext(empty);
+        context.reset();
+        assertEquals(0, context.touchedCount());
+    }
+
+    @Test
+    public void testSearchContextGrowsAndResets() {
+        int n = 3000;
+        CompactGraph graph = new CompactGraph(new long[n], new double[n], new double[n],
+                new int[n + 1], new int[0]);
+        SearchContext context = new SearchContext(graph);
+        for (int v = 0; v < n; v++) {
+            context.update(v, v, n - 1 - v);
+        }
+        assertEquals(n, context.touchedCount());
+        assertEquals(n - 1, context.touched(n - 1));
+        context.reset();
+        assertEquals(0, context.touchedCount());
+        for (int v = 0; v < n; v++) {
+            assertEquals(Double.POSITIVE_INFINITY, context.dist[v], 0);
+            assertEquals(-1, context.parent[v]);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the shortest-path tree of Router.reachable on a small graph where vertex a is first
+ * reached through x, then settled through y, which the search only reaches after a.
+ */
+public class IsochroneTest {
+    private static final double EPSILON = 1e-12;
+    /* Vertices s, x, z, a, y, far. */
+    private static final double[] XS = {0, -0.1, 0.2, 1, 0.6, 3};
+    private static final double[] YS = {0, 0, 0, 0, 0.05, 0};
+
+    private static GraphDB graph() {
+        double[] lons = new double[XS.length];
+        double[] lats = new double[XS.length];
+        for (int i = 0; i < XS.length; i++) {
+            lons[i] = -122.26 + XS[i] * 0.01;
+            lats[i] = 37.87 + YS[i] * 0.01;
+        }
+        List<int[]> edges = new ArrayList<>();
+        edges.add(new int[]{0, 1});
+        edges.add(new int[]{0, 2});
+        edges.add(new int[]{1, 3});
+        edges.add(new int[]{2, 4});
+        edges.add(new int[]{4, 3});
+        edges.add(new int[]{3, 5});
+        return new GraphDB(RouterTest.build(lons, lats, edges), new HashMap<>(),
+                Collections.emptyList());
+    }
+
+    @Test
+    public void testParentsComeBeforeChildren() {
+        GraphDB g = graph();
+        CompactGraph graph = g.graph();
+        Isochrone isochrone = Router.reachable(g, graph.lons[0], graph.lats[0], 0.015);
+        assertEquals(5, isochrone.size());
+        assertEquals(graph.ids[0], isochrone.ids[0]);
+        assertEquals(-1, isochrone.parents[0]);
+
+        double[] expected = RouterTest.dijkstra(graph, 0);
+        Set<Long> seen = new HashSet<>();
+        for (int i = 0; i < isochrone.size(); i++) {
+            if (i > 0) {
+                assertTrue("Parent of " + isochrone.ids[i] + " comes after it.",
+                        seen.contains(isochrone.parents[i]));
+            }
+            seen.add(isochrone.ids[i]);
+            int v = graph.indexOf(isochrone.ids[i]);
+            assertEquals(expected[v], isochrone.distances[i], EPSILON);
+            assertTrue(isochrone.distances[i] <= isochrone.bound);
+        }
+        assertFalse(seen.contains(graph.ids[5]));
+    }
+
+    @Test
+    public void testTreeFollowsShortestPaths() {
+        GraphDB g = graph();
+        CompactGraph graph = g.graph();
+        Isochrone isochrone = Router.reachable(g, graph.lons[0], graph.lats[0], 0.015);
+        for (int i = 0; i < isochrone.size(); i++) {
+            if (isochrone.ids[i] == graph.ids[3]) {
+                assertEquals("a is settled through y", graph.ids[4], isochrone.parents[i]);
+            }
+        }
+        /* Walk every vertex's parents back to the start, adding up the edge lengths. */
+        for (int i = 0; i < isochrone.size(); i++) {
+            double length = 0;
+            long v = isochrone.ids[i];
+            for (int steps = 0; v != graph.ids[0]; steps++) {
+                assertTrue("Parents of " + isochrone.ids[i] + " form a cycle.",
+                        steps < isochrone.size());
+                long parent = -1;
+                for (int j = 0; j < isochrone.size(); j++) {
+                    if (isochrone.ids[j] == v) {
+                        parent = isochrone.parents[j];
+                    }
+                }
+                length += g.distance(parent, v);
+                v = parent;
+            }
+            assertEquals(isochrone.distances[i], length, EPSILON);
+        }
+    }
+}
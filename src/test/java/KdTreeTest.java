@@ -0,0 +1,82 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the k-d tree behind GraphDB.closest against a linear scan over random points.
+ */
+public class KdTreeTest {
+    private CompactGraph graph;
+    private KdTree tree;
+
+    @Before
+    public void setUp() {
+        Random r = new Random(61);
+        int n = 5000;
+        long[] ids = new long[n];
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = 1000 + i;
+            lons[i] = -122.30 + r.nextDouble() * 0.09;
+            /* Snap some latitudes to a grid so the tree has to handle duplicate keys. */
+            lats[i] = 37.82 + (i % 3 == 0 ? (r.nextInt(50) * 0.001) : r.nextDouble() * 0.07);
+        }
+        graph = new CompactGraph(ids, lons, lats, new int[n + 1], new int[0]);
+        tree = new KdTree(graph);
+    }
+
+    @Test
+    public void testNearestMatchesLinearScan() {
+        Random r = new Random(62);
+        for (int q = 0; q < 2000; q++) {
+            double lon = -122.31 + r.nextDouble() * 0.11;
+            double lat = 37.81 + r.nextDouble() * 0.09;
+            assertEquals(linearScan(lon, lat), tree.nearest(lon, lat));
+        }
+    }
+
+    @Test
+    public void testKNearestMatchesSortedScan() {
+        Random r = new Random(63);
+        for (int q = 0; q < 200; q++) {
+            double lon = -122.31 + r.nextDouble() * 0.11;
+            double lat = 37.81 + r.nextDouble() * 0.09;
+            int[] actual = tree.nearest(lon, lat, 8);
+            double[] expected = sortedDistances(lon, lat);
+            assertEquals(8, actual.length);
+            for (int i = 0; i < actual.length; i++) {
+                assertEquals(expected[i], dist2(actual[i], lon, lat), 0);
+            }
+        }
+    }
+
+    private int linearScan(double lon, double lat) {
+        int best = 0;
+        for (int i = 1; i < graph.size(); i++) {
+            if (dist2(i, lon, lat) < dist2(best, lon, lat)) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private double[] sortedDistances(double lon, double lat) {
+        double[] d = new double[graph.size()];
+        for (int i = 0; i < d.length; i++) {
+            d[i] = dist2(i, lon, lat);
+        }
+        Arrays.sort(d);
+        return d;
+    }
+
+    private double dist2(int v, double lon, double lat) {
+        double dLon = graph.lons[v] - lon;
+        double dLat = graph.lats[v] - lat;
+        return dLon * dLon + dLat * dLat;
+    }
+}
@@ -0,0 +1,79 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the landmark bound never exceeds the true road distance, and that A* finds
+ * routes of the same length with and without landmarks, on the jittered grid of RouterTest
+ * with enough roads missing that many routes detour.
+ */
+public class LandmarksTest {
+    private static final double EPSILON = 1e-12;
+    private CompactGraph graph;
+    private Landmarks landmarks;
+
+    @Before
+    public void setUp() {
+        graph = RouterTest.grid(0.0004, 0.35, 71);
+        landmarks = Landmarks.select(graph, 4);
+    }
+
+    @Test
+    public void testBoundIsAdmissible() {
+        assertEquals(4, landmarks.size());
+        int n = graph.size();
+        for (int v = 0; v < n; v++) {
+            double[] dist = RouterTest.dijkstra(graph, v);
+            for (int t = 0; t < n; t++) {
+                assertTrue("Bound from " + v + " to " + t + " is too large.",
+                        landmarks.lowerBound(v, t) <= dist[t]);
+            }
+        }
+    }
+
+    @Test
+    public void testBoundIsTightAtLandmarks() {
+        for (int l : landmarks.landmarks) {
+            double[] dist = RouterTest.dijkstra(graph, l);
+            for (int t = 0; t < graph.size(); t++) {
+                if (dist[t] < Double.POSITIVE_INFINITY) {
+                    assertEquals(dist[t], landmarks.lowerBound(l, t), 1e-6);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRoutesMatchPlainAStar() {
+        GraphDB plain = new GraphDB(graph, new HashMap<>(), Collections.emptyList());
+        GraphDB alt = new GraphDB(graph, new HashMap<>(), Collections.emptyList());
+        alt.computeLandmarks(4);
+        int n = graph.size();
+        for (int s = 0; s < n; s += 2) {
+            double[] expected = RouterTest.dijkstra(graph, s);
+            for (int t = 0; t < n; t++) {
+                LinkedList<Long> without = Router.shortestPath(plain, graph.lons[s],
+                        graph.lats[s], graph.lons[t], graph.lats[t], Router.Algorithm.ASTAR);
+                for (Router.Algorithm algorithm : new Router.Algorithm[]{
+                    Router.Algorithm.ASTAR, Router.Algorithm.BIDIRECTIONAL}) {
+                    LinkedList<Long> with = Router.shortestPath(alt, graph.lons[s],
+                            graph.lats[s], graph.lons[t], graph.lats[t], algorithm);
+                    String err = algorithm + " from " + s + " to " + t;
+                    if (expected[t] == Double.POSITIVE_INFINITY) {
+                        assertTrue(err, with.isEmpty());
+                        assertTrue(err, without.isEmpty());
+                        continue;
+                    }
+                    assertEquals(err, expected[t], RouterTest.length(graph, with), EPSILON);
+                    assertEquals(err, RouterTest.length(graph, without),
+                            RouterTest.length(graph, with), EPSILON);
+                }
+            }
+        }
+    }
+}
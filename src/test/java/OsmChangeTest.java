@@ -0,0 +1,286 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks parsing of OSM change files and applying them to a small extract: a road 1-2-3-4
+ * made of two ways, a branch 1-6-7 and a named node 5.
+ */
+public class OsmChangeTest {
+    private static final String EXTRACT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<osm version=\"0.6\">\n"
+            + "  <node id=\"1\" lat=\"37.870\" lon=\"-122.260\"/>\n"
+            + "  <node id=\"2\" lat=\"37.870\" lon=\"-122.259\"/>\n"
+            + "  <node id=\"3\" lat=\"37.870\" lon=\"-122.258\"/>\n"
+            + "  <node id=\"4\" lat=\"37.870\" lon=\"-122.257\"/>\n"
+            + "  <node id=\"5\" lat=\"37.871\" lon=\"-122.258\">\n"
+            + "    <tag k=\"name\" v=\"Top Dog\"/>\n"
+            + "  </node>\n"
+            + "  <node id=\"6\" lat=\"37.872\" lon=\"-122.260\"/>\n"
+            + "  <node id=\"7\" lat=\"37.872\" lon=\"-122.259\"/>\n"
+            + "  <way id=\"100\">\n"
+            + "    <nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Main St\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"101\">\n"
+            + "    <nd ref=\"3\"/><nd ref=\"4\"/>\n"
+            + "    <tag k=\"highway\" v=\"primary\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"102\">\n"
+            + "    <nd ref=\"1\"/><nd ref=\"6\"/><nd ref=\"7\"/>\n"
+            + "    <tag k=\"highway\" v=\"living_street\"/>\n"
+            + "  </way>\n"
+            + "</osm>\n";
+
+    /** Extends the road to a new node 8, shortens way 100 to 1-2, moves node 4, renames
+     * node 5 and deletes the branch and node 6. */
+    private static final String CHANGE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<osmChange version=\"0.6\">\n"
+            + "  <create>\n"
+            + "    <node id=\"8\" lat=\"37.870\" lon=\"-122.256\"/>\n"
+            + "    <way id=\"103\">\n"
+            + "      <nd ref=\"4\"/><nd ref=\"8\"/>\n"
+            + "      <tag k=\"highway\" v=\"tertiary\"/><tag k=\"maxspeed\" v=\"25 mph\"/>\n"
+            + "    </way>\n"
+            + "  </create>\n"
+            + "  <modify>\n"
+            + "    <way id=\"100\">\n"
+            + "      <nd ref=\"1\"/><nd ref=\"2\"/>\n"
+            + "      <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Renamed St\"/>\n"
+            + "    </way>\n"
+            + "    <node id=\"4\" lat=\"37.8705\" lon=\"-122.257\"/>\n"
+            + "    <node id=\"5\" lat=\"37.871\" lon=\"-122.258\">\n"
+            + "      <tag k=\"name\" v=\"Cafe Strada\"/>\n"
+            + "    </node>\n"
+            + "  </modify>\n"
+            + "  <delete>\n"
+            + "    <way id=\"102\"/>\n"
+            + "    <node id=\"6\"/>\n"
+            + "  </delete>\n"
+            + "</osmChange>\n";
+
+    private String path;
+
+    @Before
+    public void setUp() throws IOException {
+        File file = File.createTempFile("extract", ".osm");
+        file.deleteOnExit();
+        Files.write(file.toPath(), EXTRACT.getBytes(StandardCharsets.UTF_8));
+        path = file.getPath();
+    }
+
+    private static OsmChange parse(String xml) throws XMLStreamException {
+        return OsmChange.read(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static Set<Long> neighbours(GraphDB g, long v) {
+        Set<Long> result = new HashSet<>();
+        for (long w : g.adjacent(v)) {
+            result.add(w);
+        }
+        return result;
+    }
+
+    private static Set<Long> set(long... ids) {
+        Set<Long> result = new HashSet<>();
+        for (long id : ids) {
+            result.add(id);
+        }
+        return result;
+    }
+
+    private static List<String> names(GraphDB g) {
+        List<String> names = new ArrayList<>();
+        for (GraphDB.Location location : g.locations()) {
+            names.add(location.name);
+        }
+        return names;
+    }
+
+    @Test
+    public void testParsesElementsInOrder() throws XMLStreamException {
+        List<OsmChange.Element> elements = parse(CHANGE).elements();
+        assertEquals(7, elements.size());
+        OsmChange.Element node = elements.get(0);
+        assertEquals(OsmChange.Action.CREATE, node.action);
+        assertFalse(node.way);
+        assertEquals(8, node.id);
+        assertEquals(-122.256, node.lon, 0);
+        assertEquals(37.870, node.lat, 0);
+        OsmChange.Element way = elements.get(1);
+        assertTrue(way.way);
+        assertEquals(2, way.refCount);
+        assertEquals(4, way.refs[0]);
+        assertEquals(8, way.refs[1]);
+        assertEquals("tertiary", way.highway);
+        assertEquals("25 mph", way.maxspeed);
+        assertEquals(OsmChange.Action.MODIFY, elements.get(2).action);
+        assertEquals("Renamed St", elements.get(2).name);
+        assertEquals("Cafe Strada", elements.get(4).name);
+        OsmChange.Element deleted = elements.get(6);
+        assertEquals(OsmChange.Action.DELETE, deleted.action);
+        assertEquals(6, deleted.id);
+        assertTrue(Double.isNaN(deleted.lon));
+    }
+
+    @Test(expected = XMLStreamException.class)
+    public void testRejectsNodeWithoutPosition() throws XMLStreamException {
+        parse("<osmChange><create><node id=\"1\" lat=\"37.87\"/></create></osmChange>");
+    }
+
+    @Test(expected = XMLStreamException.class)
+    public void testRejectsElementOutsideAction() throws XMLStreamException {
+        parse("<osmChange><node id=\"1\" lat=\"37.87\" lon=\"-122.26\"/></osmChange>");
+    }
+
+    @Test(expected = XMLStreamException.class)
+    public void testRejectsMalformedDocument() throws XMLStreamException {
+        parse("<osmChange><delete><way id=\"1\"></delete></osmChange>");
+    }
+
+    @Test
+    public void testAppliesCreatesModifiesAndDeletes() throws XMLStreamException {
+        GraphDB g = GraphDB.openForChanges(path);
+        assertEquals(set(1, 3), neighbours(g, 2));
+        assertEquals(set(2, 6), neighbours(g, 1));
+        GraphDB next = g.applyChanges(parse(CHANGE));
+
+        assertEquals(set(1), neighbours(next, 2));
+        assertEquals(set(2), neighbours(next, 1));
+        assertEquals(set(4), neighbours(next, 3));
+        assertEquals(set(3, 8), neighbours(next, 4));
+        assertEquals(37.8705, next.lat(4), 0);
+        assertEquals(-1, next.graph().indexOf(6));
+        assertEquals(-1, next.graph().indexOf(7));
+        assertEquals("Renamed St", next.wayNames().get(100L));
+        assertEquals(Highway.TERTIARY.code(),
+                next.graph().highways[next.graph().offsets[next.graph().indexOf(8)]]);
+        assertEquals(1, names(next).size());
+        assertEquals("Cafe Strada", names(next).get(0));
+
+        /* The old version is left as it was. */
+        assertEquals(set(1, 3), neighbours(g, 2));
+        assertEquals(37.870, g.lat(4), 0);
+        assertEquals("Top Dog", names(g).get(0));
+        assertEquals(6, g.closest(-122.2601, 37.8721));
+    }
+
+    @Test
+    public void testChangesFormAChain() throws XMLStreamException {
+        GraphDB g = GraphDB.openForChanges(path);
+        GraphDB next = g.applyChanges(parse(CHANGE));
+        try {
+            g.applyChanges(parse(CHANGE));
+            fail("Applied a change to a superseded version.");
+        } catch (IllegalStateException e) {
+            /* Expected. */
+        }
+        GraphDB third = next.applyChanges(parse("<osmChange><delete><way id=\"103\"/>"
+                + "</delete></osmChange>"));
+        assertEquals(-1, third.graph().indexOf(8));
+        try {
+            new GraphDB(path).applyChanges(parse(CHANGE));
+            fail("Applied a change to a graph opened without change data.");
+        } catch (IllegalStateException e) {
+            /* Expected. */
+        }
+    }
+
+    @Test
+    public void testOverridesFollowTheirSegments() throws XMLStreamException {
+        GraphDB g = GraphDB.openForChanges(path);
+        g.overrideSegments(new long[]{3, 2}, new long[]{4, 3}, 2.0);
+        GraphDB next = g.applyChanges(parse(CHANGE));
+        EdgeOverlay overlay = next.overlay();
+        /* Segment 3-4 survives in both directions; segment 2-3 was removed. */
+        assertEquals(2, overlay.size());
+        CompactGraph graph = next.graph();
+        for (int i = 0; i < overlay.size(); i++) {
+            int e = overlay.edge(i);
+            Set<Long> ends = set(graph.ids[graph.edgeSource(e)], graph.ids[graph.targets[e]]);
+            assertEquals(set(3, 4), ends);
+            assertEquals(2.0, overlay.factor(i), 0);
+        }
+    }
+
+    @Test
+    public void testOverridesSurviveLargestComponentFilter() throws XMLStreamException {
+        GraphDB g = GraphDB.openForChanges(path);
+        g.overrideSegments(new long[]{3, 2}, new long[]{4, 1}, 3.0);
+        /* The change cuts 1-2 off from 3-4-8, as MapServer's "largest" components option
+         * then drops it. */
+        GraphDB next = g.applyChanges(parse(CHANGE));
+        next.keepLargestComponent();
+        CompactGraph graph = next.graph();
+        assertEquals(-1, graph.indexOf(1));
+        EdgeOverlay overlay = next.overlay();
+        assertEquals(2, overlay.size());
+        for (int i = 0; i < overlay.size(); i++) {
+            int e = overlay.edge(i);
+            Set<Long> ends = set(graph.ids[graph.edgeSource(e)], graph.ids[graph.targets[e]]);
+            assertEquals(set(3, 4), ends);
+            assertEquals(3.0, overlay.factor(i), 0);
+        }
+    }
+
+    @Test
+    public void testUndoRestoresSource() throws IOException, XMLStreamException {
+        OsmReader reader = new OsmReader();
+        reader.setKeepSource(true);
+        reader.read(path);
+        OsmSource source = reader.source();
+        CompactGraph before = source.toGraphDB().graph();
+        source.apply(parse(CHANGE)).run();
+        GraphDB restored = source.toGraphDB();
+        CompactGraph after = restored.graph();
+        assertArrayEquals(before.ids, after.ids);
+        assertArrayEquals(before.offsets, after.offsets);
+        assertArrayEquals(before.targets, after.targets);
+        assertArrayEquals(before.lats, after.lats, 0);
+        assertEquals("Top Dog", names(restored).get(0));
+        assertEquals("Main St", restored.wayNames().get(100L));
+    }
+
+    @Test
+    public void testLocationsKeepFileOrder() throws IOException, XMLStreamException {
+        /* Two places named alike, the higher id first. */
+        String extract = EXTRACT.replace("<node id=\"6\" lat=\"37.872\" lon=\"-122.260\"/>",
+                "<node id=\"9\" lat=\"37.873\" lon=\"-122.261\">\n"
+                        + "    <tag k=\"name\" v=\"Top Dog\"/>\n  </node>\n"
+                        + "  <node id=\"6\" lat=\"37.872\" lon=\"-122.260\"/>")
+                .replace("<node id=\"5\"", "<node id=\"10\"");
+        Files.write(new File(path).toPath(), extract.getBytes(StandardCharsets.UTF_8));
+        OsmReader reader = new OsmReader();
+        reader.setKeepSource(true);
+        reader.read(path);
+        OsmSource source = reader.source();
+        assertEquals(ids(new GraphDB(path)), ids(source.toGraphDB()));
+        assertEquals(Arrays.asList(10L, 9L), ids(source.toGraphDB()));
+
+        /* Deleting and restoring a place puts it back where it was. */
+        source.apply(parse("<osmChange version=\"0.6\"><delete><node id=\"10\"/></delete>"
+                + "</osmChange>")).run();
+        assertEquals(Arrays.asList(10L, 9L), ids(source.toGraphDB()));
+    }
+
+    private static List<Long> ids(GraphDB g) {
+        List<Long> ids = new ArrayList<>();
+        for (GraphDB.Location location : g.locations()) {
+            ids.add(location.id);
+        }
+        return ids;
+    }
+}
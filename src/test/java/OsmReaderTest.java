@@ -0,0 +1,71 @@
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the parallel graph build keeps adjacency lists in file order and nodes at their
+ * first position, however the segments are spread over chunks and ranges.
+ */
+public class OsmReaderTest {
+    /** Leaves of the star, enough for several ranges of nodes and segments. */
+    private static final int LEAVES = 40000;
+
+    /** Leaf k of the file, so that leaf ids are not in file order. */
+    private static long leaf(int k) {
+        return 2 + (k * 7919L) % LEAVES;
+    }
+
+    /**
+     * A star around node 1 split into chunks of the given number of ways, with every leaf on
+     * its own way. Node 2 is listed again at the end with another position, and leaf 0's way
+     * also runs to a node that is never listed.
+     */
+    private static OsmReader.Chunk[] star(int waysPerChunk) {
+        int chunks = (LEAVES + waysPerChunk - 1) / waysPerChunk;
+        OsmReader.Chunk[] result = new OsmReader.Chunk[chunks + 1];
+        for (int c = 0; c < chunks; c++) {
+            result[c] = new OsmReader.Chunk(waysPerChunk);
+            for (int k = c * waysPerChunk; k < Math.min(LEAVES, (c + 1) * waysPerChunk); k++) {
+                long id = leaf(k);
+                result[c].addNode(id, -122.26 + id * 1e-6, 37.87, null);
+                byte highway = (k % 2 == 0 ? Highway.RESIDENTIAL : Highway.PRIMARY).code();
+                long[] refs = k == 0 ? new long[]{1, id, 999999} : new long[]{1, id};
+                result[c].addWay(1000 + k, highway, (byte) 0, null, refs, refs.length);
+            }
+        }
+        result[0].addNode(1, -122.25, 37.86, null);
+        result[chunks] = new OsmReader.Chunk(1);
+        result[chunks].addNode(2, 0, 0, null);
+        return result;
+    }
+
+    @Test
+    public void testAdjacencyFollowsFileOrder() {
+        CompactGraph g = OsmReader.buildGraph(star(LEAVES));
+        assertEquals(LEAVES + 1, g.size());
+        int center = g.indexOf(1);
+        assertEquals(LEAVES, g.offsets[center + 1] - g.offsets[center]);
+        for (int k = 0; k < LEAVES; k++) {
+            int e = g.offsets[center] + k;
+            assertEquals(leaf(k), g.ids[g.targets[e]]);
+            byte highway = (k % 2 == 0 ? Highway.RESIDENTIAL : Highway.PRIMARY).code();
+            assertEquals(highway, g.highways[e]);
+        }
+        assertEquals(-122.26 + 2e-6, g.lons[g.indexOf(2)], 1e-12);
+        assertEquals(-1, g.indexOf(999999));
+    }
+
+    @Test
+    public void testChunkingDoesNotMatter() {
+        CompactGraph whole = OsmReader.buildGraph(star(LEAVES));
+        for (int waysPerChunk : new int[]{1000, 4096, 30000}) {
+            CompactGraph split = OsmReader.buildGraph(star(waysPerChunk));
+            assertArrayEquals(whole.ids, split.ids);
+            assertArrayEquals(whole.lons, split.lons, 0);
+            assertArrayEquals(whole.lats, split.lats, 0);
+            assertArrayEquals(whole.offsets, split.offsets);
+            assertArrayEquals(whole.targets, split.targets);
+            assertArrayEquals(whole.highways, split.highways);
+        }
+    }
+}
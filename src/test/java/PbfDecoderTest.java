@@ -0,0 +1,331 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads a small extract written both as OSM XML and as a hand-encoded PBF file, and checks
+ * that damaged PBF files fail with an IOException that says what is wrong. The PBF file has
+ * a header block, an uncompressed block with a plain named node and dense nodes, and a zlib
+ * block with the ways.
+ */
+public class PbfDecoderTest {
+    /* Node ids, latitudes and longitudes in units of 1e-7 degrees. */
+    private static final long[] NODES = {101, 102, 103, 104, 105, 230, 231};
+    private static final long[] LATS = {378700000, 378700123, 378699876, 378712345, 378720000,
+        378710000, 378690000};
+    private static final long[] LONS = {-1222600000, -1222590000, -1222580001, -1222570000,
+        -1222560000, -1222585000, -1222595555};
+    private static final String NAME = "Caf\u00e9 Strada";
+    /* Node 230 carries the name and is written as a plain node. */
+    private static final int NAMED = 5;
+
+    private static final long[][] WAY_REFS = {{101, 102, 103}, {103, 104, 105}, {102, 231}};
+    private static final String[][] WAY_TAGS = {
+        {"highway", "residential", "name", "Bancroft Way"},
+        {"highway", "primary", "maxspeed", "25 mph"},
+        {"highway", "footway"},
+    };
+
+    private byte[] pbf;
+    /** Offset in pbf of the first byte of the zlib stream in the ways block. */
+    private int zlibStart;
+
+    @Before
+    public void setUp() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        blob(out, "OSMHeader", concat(bytes(4, "OsmSchema-V0.6"), bytes(4, "DenseNodes")),
+                false);
+        blob(out, "OSMData", nodeBlock(), false);
+        byte[] ways = wayBlock();
+        blob(out, "OSMData", ways, true);
+        pbf = out.toByteArray();
+        /* The zlib stream is the last field of the last blob. */
+        zlibStart = pbf.length - deflate(ways).length;
+    }
+
+    private static String decimal(long e7) {
+        return new BigDecimal(e7).movePointLeft(7).toPlainString();
+    }
+
+    private static String xml() {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<osm version=\"0.6\">\n");
+        for (int i = 0; i < NODES.length; i++) {
+            sb.append("  <node id=\"").append(NODES[i]).append("\" lat=\"")
+                    .append(decimal(LATS[i])).append("\" lon=\"").append(decimal(LONS[i]))
+                    .append("\"");
+            if (i == NAMED) {
+                sb.append("><tag k=\"name\" v=\"").append(NAME).append("\"/></node>\n");
+            } else {
+                sb.append("/>\n");
+            }
+        }
+        for (int w = 0; w < WAY_REFS.length; w++) {
+            sb.append("  <way id=\"").append(500 + w).append("\">\n");
+            for (long ref : WAY_REFS[w]) {
+                sb.append("    <nd ref=\"").append(ref).append("\"/>\n");
+            }
+            for (int t = 0; t < WAY_TAGS[w].length; t += 2) {
+                sb.append("    <tag k=\"").append(WAY_TAGS[w][t]).append("\" v=\"")
+                        .append(WAY_TAGS[w][t + 1]).append("\"/>\n");
+            }
+            sb.append("  </way>\n");
+        }
+        return sb.append("</osm>\n").toString();
+    }
+
+    /* Protobuf encoding. */
+
+    private static byte[] varint(long n) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while ((n & ~0x7FL) != 0) {
+            out.write((int) (n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        out.write((int) n);
+        return out.toByteArray();
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] number(int field, long value) {
+        return concat(varint(field << 3), varint(value));
+    }
+
+    private static byte[] bytes(int field, byte[] value) {
+        return concat(varint(field << 3 | 2), varint(value.length), value);
+    }
+
+    private static byte[] bytes(int field, String value) {
+        return bytes(field, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] packed(int field, long... values) {
+        byte[][] parts = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            parts[i] = varint(values[i]);
+        }
+        return bytes(field, concat(parts));
+    }
+
+    private static byte[] stringTable(String... strings) {
+        byte[][] parts = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            parts[i] = bytes(1, strings[i]);
+        }
+        return bytes(1, concat(parts));
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buf = new byte[data.length + 64];
+        int n = deflater.deflate(buf);
+        deflater.end();
+        return Arrays.copyOf(buf, n);
+    }
+
+    private static void blob(ByteArrayOutputStream out, String type, byte[] block,
+                             boolean compress) {
+        byte[] body = compress
+                ? concat(number(2, block.length), bytes(3, deflate(block)))
+                : bytes(1, block);
+        byte[] header = concat(bytes(1, type), number(3, body.length));
+        int size = header.length;
+        out.write(size >>> 24);
+        out.write(size >>> 16);
+        out.write(size >>> 8);
+        out.write(size);
+        out.write(header, 0, header.length);
+        out.write(body, 0, body.length);
+    }
+
+    /** A block with the named node as a plain Node and the others as DenseNodes. */
+    private static byte[] nodeBlock() {
+        byte[] plain = bytes(1, concat(number(1, zigzag(NODES[NAMED])), packed(2, 1),
+                packed(3, 2), number(8, zigzag(LATS[NAMED])), number(9, zigzag(LONS[NAMED]))));
+        List<Long> ids = new ArrayList<>();
+        List<Long> lats = new ArrayList<>();
+        List<Long> lons = new ArrayList<>();
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        for (int i = 0; i < NODES.length; i++) {
+            if (i == NAMED) {
+                continue;
+            }
+            ids.add(zigzag(NODES[i] - id));
+            lats.add(zigzag(LATS[i] - lat));
+            lons.add(zigzag(LONS[i] - lon));
+            id = NODES[i];
+            lat = LATS[i];
+            lon = LONS[i];
+        }
+        byte[] dense = bytes(2, concat(packed(1, unbox(ids)), packed(8, unbox(lats)),
+                packed(9, unbox(lons))));
+        /* The groups come before the string table and granularity, which is allowed. */
+        return concat(bytes(2, plain), bytes(2, dense), stringTable("", "name", NAME),
+                number(17, 100));
+    }
+
+    private static byte[] wayBlock() {
+        List<String> strings = new ArrayList<>();
+        strings.add("");
+        byte[][] ways = new byte[WAY_REFS.length][];
+        for (int w = 0; w < WAY_REFS.length; w++) {
+            long[] keys = new long[WAY_TAGS[w].length / 2];
+            long[] vals = new long[keys.length];
+            for (int t = 0; t < keys.length; t++) {
+                keys[t] = index(strings, WAY_TAGS[w][2 * t]);
+                vals[t] = index(strings, WAY_TAGS[w][2 * t + 1]);
+            }
+            long[] refs = new long[WAY_REFS[w].length];
+            for (int r = 0; r < refs.length; r++) {
+                refs[r] = zigzag(WAY_REFS[w][r] - (r == 0 ? 0 : WAY_REFS[w][r - 1]));
+            }
+            ways[w] = bytes(3, concat(number(1, 500 + w), packed(2, keys), packed(3, vals),
+                    packed(8, refs)));
+        }
+        return concat(stringTable(strings.toArray(new String[0])), bytes(2, concat(ways)));
+    }
+
+    private static long index(List<String> strings, String s) {
+        if (!strings.contains(s)) {
+            strings.add(s);
+        }
+        return strings.indexOf(s);
+    }
+
+    private static long[] unbox(List<Long> values) {
+        long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    /* Reading. */
+
+    private static String write(byte[] data, String suffix) throws IOException {
+        File file = File.createTempFile("extract", suffix);
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+        return file.getPath();
+    }
+
+    private static OsmReader read(byte[] data, String suffix)
+            throws IOException, XMLStreamException {
+        OsmReader reader = new OsmReader();
+        reader.read(write(data, suffix));
+        return reader;
+    }
+
+    /** Reads data as a PBF file and returns the message of the IOException it fails with. */
+    private static String failure(byte[] data) throws XMLStreamException {
+        try {
+            read(data, ".osm.pbf");
+        } catch (IOException e) {
+            String message = e.getMessage();
+            if (e.getCause() != null) {
+                message += ": " + e.getCause().getMessage();
+            }
+            return message;
+        }
+        fail("Read a damaged PBF file.");
+        return null;
+    }
+
+    @Test
+    public void testMatchesXml() throws IOException, XMLStreamException {
+        OsmReader fromXml = read(xml().getBytes(StandardCharsets.UTF_8), ".osm");
+        OsmReader fromPbf = read(pbf, ".osm.pbf");
+        CompactGraph expected = fromXml.graph();
+        CompactGraph actual = fromPbf.graph();
+        /* Node 230 is only a location and the footway is not a road. */
+        assertEquals(5, expected.size());
+        assertArrayEquals(expected.ids, actual.ids);
+        assertArrayEquals(expected.lons, actual.lons, 0);
+        assertArrayEquals(expected.lats, actual.lats, 0);
+        assertArrayEquals(expected.offsets, actual.offsets);
+        assertArrayEquals(expected.targets, actual.targets);
+        assertArrayEquals(expected.weights, actual.weights, 0);
+        assertArrayEquals(expected.highways, actual.highways);
+        assertArrayEquals(expected.speeds, actual.speeds);
+        assertEquals(fromXml.wayNames(), fromPbf.wayNames());
+        assertEquals("Bancroft Way", fromPbf.wayNames().get(500L));
+
+        assertEquals(1, fromPbf.locations().size());
+        GraphDB.Location location = fromPbf.locations().get(0);
+        GraphDB.Location fromXmlLocation = fromXml.locations().get(0);
+        assertEquals(NAME, location.name);
+        assertEquals(NODES[NAMED], location.id);
+        assertEquals(fromXmlLocation.lon, location.lon, 0);
+        assertEquals(fromXmlLocation.lat, location.lat, 0);
+    }
+
+    @Test
+    public void testTruncatedInsideBlob() throws XMLStreamException {
+        String message = failure(Arrays.copyOf(pbf, pbf.length - 5));
+        assertTrue(message, message.contains("Truncated PBF file"));
+    }
+
+    @Test
+    public void testTruncatedInsideBlobSize() throws XMLStreamException {
+        /* Two bytes of a third blob's size. */
+        String message = failure(Arrays.copyOf(pbf, pbf.length + 2));
+        assertTrue(message, message.contains("Truncated PBF file"));
+    }
+
+    @Test
+    public void testCorruptCompressedBlock() throws XMLStreamException {
+        byte[] data = pbf.clone();
+        data[zlibStart] ^= 0x55;
+        String message = failure(data);
+        assertTrue(message, message.contains("Corrupt PBF blob"));
+    }
+
+    @Test
+    public void testInvalidBlobHeaderSize() throws XMLStreamException {
+        byte[] data = pbf.clone();
+        data[0] = 0x7F;
+        String message = failure(data);
+        assertTrue(message, message.contains("Invalid PBF blob header size"));
+    }
+
+    @Test
+    public void testUnsupportedFeature() throws XMLStreamException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        blob(out, "OSMHeader", bytes(4, "HistoricalInformation"), false);
+        String message = failure(out.toByteArray());
+        assertTrue(message, message.contains("Unsupported PBF feature"));
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException, XMLStreamException {
+        assertEquals(0, read(new byte[0], ".osm.pbf").graph().size());
+    }
+}
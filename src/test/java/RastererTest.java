@@ -0,0 +1,99 @@
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the arithmetic tile addressing of getMapRaster against the quadtree walk it
+ * replaced, on random query boxes of every size, including boxes reaching past the map.
+ */
+public class RastererTest {
+    private static final double THRESHOLD = 1e-12;
+    private final Rasterer rasterer = new Rasterer("img/");
+
+    private static Map<String, Double> query(double ullon, double ullat, double lrlon,
+                                             double lrlat, double w, double h) {
+        Map<String, Double> params = new HashMap<>();
+        params.put("ullon", ullon);
+        params.put("ullat", ullat);
+        params.put("lrlon", lrlon);
+        params.put("lrlat", lrlat);
+        params.put("w", w);
+        params.put("h", h);
+        return params;
+    }
+
+    @Test
+    public void testMatchesQuadtree() {
+        Random random = new Random(22);
+        double lonSpan = Rasterer.ROOT_LRLON - Rasterer.ROOT_ULLON;
+        double latSpan = Rasterer.ROOT_ULLAT - Rasterer.ROOT_LRLAT;
+        for (int i = 0; i < 2000; i++) {
+            /* Box sizes from a few deepest tiles up to past the whole map. */
+            double width = lonSpan * Math.pow(2, -9 * random.nextDouble()) * 1.2;
+            double height = latSpan * Math.pow(2, -9 * random.nextDouble()) * 1.2;
+            double ullon = Rasterer.ROOT_ULLON - 0.1 * lonSpan
+                    + random.nextDouble() * 1.2 * lonSpan - width / 2;
+            double ullat = Rasterer.ROOT_ULLAT + 0.1 * latSpan
+                    - random.nextDouble() * 1.2 * latSpan + height / 2;
+            Map<String, Double> params = query(ullon, ullat, ullon + width, ullat - height,
+                    200 + random.nextInt(1200), 200 + random.nextInt(1000));
+            Map<String, Object> expected = rasterer.getMapRasterByQuadtree(params);
+            Map<String, Object> actual = rasterer.getMapRaster(params);
+            String err = "Results differ for " + params + ".";
+            assertArrayEquals(err, (String[][]) expected.get("render_grid"),
+                    (String[][]) actual.get("render_grid"));
+            if (!expected.containsKey("query_success")) {
+                assertEquals(err, false, actual.get("query_success"));
+                continue;
+            }
+            assertEquals(err, expected.get("depth"), actual.get("depth"));
+            assertEquals(err, true, actual.get("query_success"));
+            for (String key : new String[]{"raster_ul_lon", "raster_ul_lat", "raster_lr_lon",
+                "raster_lr_lat"}) {
+                assertEquals(err, (Double) expected.get(key), (Double) actual.get(key),
+                        THRESHOLD);
+            }
+        }
+    }
+
+    @Test
+    public void testTileNames() {
+        assertEquals("img/root.png", rasterer.tileName(0, 0, 0));
+        assertEquals("img/4.png", rasterer.tileName(1, 1, 1));
+        assertEquals("img/23.png", rasterer.tileName(2, 2, 1));
+        assertEquals("img/1111111.png", rasterer.tileName(7, 0, 0));
+        assertEquals("img/4444444.png", rasterer.tileName(7, 127, 127));
+    }
+
+    @Test
+    public void testTileRasterMatchesRenderGrid() {
+        Map<String, Double> params = query(-122.27, 37.88, -122.25, 37.86, 1000, 800);
+        Map<String, Object> tiles = rasterer.getTileRaster(params);
+        String[][] grid = (String[][]) rasterer.getMapRaster(params).get("render_grid");
+        int depth = (int) tiles.get("depth");
+        int x0 = (int) tiles.get("tile_x");
+        int y0 = (int) tiles.get("tile_y");
+        assertEquals(grid.length, tiles.get("tile_rows"));
+        assertEquals(grid[0].length, tiles.get("tile_columns"));
+        for (int r = 0; r < grid.length; r++) {
+            for (int c = 0; c < grid[r].length; c++) {
+                assertEquals(grid[r][c], rasterer.tileName(depth, x0 + c, y0 + r));
+            }
+        }
+        assertTrue(Rasterer.hasTile(Rasterer.MAX_DEPTH, 127, 127));
+        assertFalse(Rasterer.hasTile(Rasterer.MAX_DEPTH, 128, 0));
+        assertFalse(Rasterer.hasTile(Rasterer.MAX_DEPTH + 1, 0, 0));
+    }
+
+    @Test
+    public void testQueryOutsideMapFails() {
+        Map<String, Object> result = rasterer.getMapRaster(query(-123, 38.5, -122.9, 38.4,
+                512, 512));
+        assertEquals(false, result.get("query_success"));
+        assertEquals(0, ((String[][]) result.get("render_grid")).length);
+    }
+}
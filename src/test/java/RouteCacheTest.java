@@ -0,0 +1,95 @@
+import org.junit.Test;
+
+import java.util.LinkedList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks LRU eviction, time-to-live expiry and overlay-version invalidation of the route
+ * cache, and that hits hand out independent copies of the cached path.
+ */
+public class RouteCacheTest {
+    private static final long HOUR = 3600;
+
+    private static LinkedList<Long> path(long... ids) {
+        LinkedList<Long> path = new LinkedList<>();
+        for (long id : ids) {
+            path.add(id);
+        }
+        return path;
+    }
+
+    @Test
+    public void testHitReturnsCopy() {
+        RouteCache cache = new RouteCache(4, HOUR);
+        cache.put(1, 2, RoutingProfile.DISTANCE, 0, path(10, 11, 12));
+        LinkedList<Long> first = cache.get(1, 2, RoutingProfile.DISTANCE, 0);
+        assertEquals(path(10, 11, 12), first);
+        first.clear();
+        assertEquals(path(10, 11, 12), cache.get(1, 2, RoutingProfile.DISTANCE, 0));
+        assertEquals(2, cache.hits());
+        assertNull(cache.get(2, 1, RoutingProfile.DISTANCE, 0));
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        RouteCache cache = new RouteCache(3, HOUR);
+        cache.put(0, 1, RoutingProfile.DISTANCE, 0, path(0, 1));
+        cache.put(1, 2, RoutingProfile.DISTANCE, 0, path(1, 2));
+        cache.put(2, 3, RoutingProfile.DISTANCE, 0, path(2, 3));
+        assertNotNull(cache.get(0, 1, RoutingProfile.DISTANCE, 0));
+        cache.put(3, 4, RoutingProfile.DISTANCE, 0, path(3, 4));
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.evictions());
+        assertNull("least recently used route was kept",
+                cache.get(1, 2, RoutingProfile.DISTANCE, 0));
+        assertNotNull("recently used route was evicted",
+                cache.get(0, 1, RoutingProfile.DISTANCE, 0));
+        assertNotNull(cache.get(2, 3, RoutingProfile.DISTANCE, 0));
+        assertNotNull(cache.get(3, 4, RoutingProfile.DISTANCE, 0));
+    }
+
+    @Test
+    public void testProfilesAreCachedSeparately() {
+        RoutingProfile other = RoutingProfile.CAR;
+        RouteCache cache = new RouteCache(4, HOUR);
+        cache.put(1, 2, RoutingProfile.DISTANCE, 0, path(1, 5, 2));
+        assertNull(cache.get(1, 2, other, 0));
+        cache.put(1, 2, other, 0, path(1, 6, 2));
+        assertEquals(path(1, 5, 2), cache.get(1, 2, RoutingProfile.DISTANCE, 0));
+        assertEquals(path(1, 6, 2), cache.get(1, 2, other, 0));
+    }
+
+    @Test
+    public void testExpiresAfterTimeToLive() throws InterruptedException {
+        RouteCache cache = new RouteCache(4, 0);
+        cache.put(1, 2, RoutingProfile.DISTANCE, 0, path(1, 2));
+        Thread.sleep(2);
+        assertNull(cache.get(1, 2, RoutingProfile.DISTANCE, 0));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.evictions());
+    }
+
+    @Test
+    public void testOverlayVersionChangeInvalidates() {
+        RouteCache cache = new RouteCache(4, HOUR);
+        EdgeOverlay overlay = EdgeOverlay.EMPTY;
+        cache.put(1, 2, RoutingProfile.DISTANCE, overlay.version, path(1, 2));
+        EdgeOverlay closed = overlay.with(new int[]{0}, new double[]{Double.POSITIVE_INFINITY});
+        assertNull(cache.get(1, 2, RoutingProfile.DISTANCE, closed.version));
+        assertEquals(0, cache.size());
+        /* Clearing the overrides is a new version too, not a return to the old one. */
+        cache.put(1, 2, RoutingProfile.DISTANCE, closed.version, path(1, 3, 2));
+        assertNull(cache.get(1, 2, RoutingProfile.DISTANCE, closed.cleared().version));
+    }
+
+    @Test
+    public void testClear() {
+        RouteCache cache = new RouteCache(4, HOUR);
+        cache.put(1, 2, RoutingProfile.DISTANCE, 0, path(1, 2));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(1, 2, RoutingProfile.DISTANCE, 0));
+    }
+}
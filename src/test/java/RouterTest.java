@@ -0,0 +1,217 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that one-directional and bidirectional A* find paths as short as plain Dijkstra on a
+ * small hand-built graph: a jittered 8 by 8 grid with some roads missing, plus a two-vertex
+ * island far to the east. Also covers routes from a vertex to itself, targets cut off by
+ * road closures, and the many equally short paths of an exact grid.
+ */
+public class RouterTest {
+    private static final int SIDE = 8;
+    private static final double STEP = 0.001;
+    private static final double EPSILON = 1e-12;
+    private static final Router.Algorithm[] SEARCHES = {
+        Router.Algorithm.ASTAR, Router.Algorithm.BIDIRECTIONAL};
+    private GraphDB g;
+
+    /** Builds a graph with an undirected road for every {from, to} pair in edges. */
+    static CompactGraph build(double[] lons, double[] lats, List<int[]> edges) {
+        int n = lons.length;
+        List<List<Integer>> adj = new ArrayList<>();
+        for (int v = 0; v < n; v++) {
+            adj.add(new ArrayList<>());
+        }
+        for (int[] edge : edges) {
+            adj.get(edge[0]).add(edge[1]);
+            adj.get(edge[1]).add(edge[0]);
+        }
+        long[] ids = new long[n];
+        int[] offsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            ids[v] = 100 + v;
+            offsets[v + 1] = offsets[v] + adj.get(v).size();
+        }
+        int[] targets = new int[offsets[n]];
+        for (int v = 0; v < n; v++) {
+            for (int k = 0; k < adj.get(v).size(); k++) {
+                targets[offsets[v] + k] = adj.get(v).get(k);
+            }
+        }
+        return new CompactGraph(ids, lons, lats, offsets, targets);
+    }
+
+    /** A SIDE by SIDE grid, vertex r * SIDE + c at column c of row r, then the island. */
+    static CompactGraph grid(double jitter, double dropped, long seed) {
+        Random random = new Random(seed);
+        int n = SIDE * SIDE + 2;
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        List<int[]> edges = new ArrayList<>();
+        for (int r = 0; r < SIDE; r++) {
+            for (int c = 0; c < SIDE; c++) {
+                int v = r * SIDE + c;
+                lons[v] = -122.26 + c * STEP + (random.nextDouble() - 0.5) * jitter;
+                lats[v] = 37.87 - r * STEP + (random.nextDouble() - 0.5) * jitter;
+                if (c + 1 < SIDE && random.nextDouble() >= dropped) {
+                    edges.add(new int[]{v, v + 1});
+                }
+                /* Keep the first column whole so the grid stays connected. */
+                if (r + 1 < SIDE && (c == 0 || random.nextDouble() >= dropped)) {
+                    edges.add(new int[]{v, v + SIDE});
+                }
+            }
+        }
+        lons[n - 2] = -122.20;
+        lats[n - 2] = 37.87;
+        lons[n - 1] = -122.20 + STEP;
+        lats[n - 1] = 37.87;
+        edges.add(new int[]{n - 2, n - 1});
+        return build(lons, lats, edges);
+    }
+
+    /** Plain Dijkstra distances from s, the reference every search is checked against. */
+    static double[] dijkstra(CompactGraph graph, int s) {
+        return dijkstra(graph, s, new int[graph.size()]);
+    }
+
+    /** Like dijkstra above, also leaving the shortest-path tree in parent, -1 at s. */
+    static double[] dijkstra(CompactGraph graph, int s, int[] parent) {
+        Arrays.fill(parent, -1);
+        double[] dist = new double[graph.size()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        boolean[] done = new boolean[graph.size()];
+        dist[s] = 0;
+        for (int i = 0; i < graph.size(); i++) {
+            int v = -1;
+            for (int w = 0; w < graph.size(); w++) {
+                if (!done[w] && (v < 0 || dist[w] < dist[v])) {
+                    v = w;
+                }
+            }
+            if (dist[v] == Double.POSITIVE_INFINITY) {
+                break;
+            }
+            done[v] = true;
+            for (int e = graph.offsets[v]; e < graph.offsets[v + 1]; e++) {
+                int w = graph.targets[e];
+                if (dist[v] + graph.weights[e] < dist[w]) {
+                    dist[w] = dist[v] + graph.weights[e];
+                    parent[w] = v;
+                }
+            }
+        }
+        return dist;
+    }
+
+    /** Length of path, failing if two consecutive vertices are not joined by a road. */
+    static double length(CompactGraph graph, List<Long> path) {
+        double total = 0;
+        for (int i = 1; i < path.size(); i++) {
+            int v = graph.indexOf(path.get(i - 1));
+            int w = graph.indexOf(path.get(i));
+            double step = Double.POSITIVE_INFINITY;
+            for (int e = graph.offsets[v]; e < graph.offsets[v + 1]; e++) {
+                if (graph.targets[e] == w) {
+                    step = Math.min(step, graph.weights[e]);
+                }
+            }
+            assertTrue("No road from " + path.get(i - 1) + " to " + path.get(i) + ".",
+                    step < Double.POSITIVE_INFINITY);
+            total += step;
+        }
+        return total;
+    }
+
+    private LinkedList<Long> route(int s, int t, Router.Algorithm algorithm) {
+        CompactGraph graph = g.graph();
+        return Router.shortestPath(g, graph.lons[s], graph.lats[s], graph.lons[t],
+                graph.lats[t], algorithm);
+    }
+
+    @Before
+    public void setUp() {
+        g = new GraphDB(grid(0.0004, 0.25, 51), new HashMap<>(),
+                Collections.emptyList());
+    }
+
+    @Test
+    public void testMatchesDijkstra() {
+        CompactGraph graph = g.graph();
+        int n = SIDE * SIDE;
+        for (int s = 0; s < n; s += 3) {
+            double[] expected = dijkstra(graph, s);
+            for (int t = 0; t < n; t++) {
+                for (Router.Algorithm algorithm : SEARCHES) {
+                    LinkedList<Long> path = route(s, t, algorithm);
+                    String err = algorithm + " from " + s + " to " + t;
+                    if (expected[t] == Double.POSITIVE_INFINITY) {
+                        assertTrue(err, path.isEmpty());
+                        continue;
+                    }
+                    assertEquals(err, graph.ids[s], (long) path.getFirst());
+                    assertEquals(err, graph.ids[t], (long) path.getLast());
+                    assertEquals(err, expected[t], length(graph, path), EPSILON);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRouteToItself() {
+        for (Router.Algorithm algorithm : SEARCHES) {
+            LinkedList<Long> path = route(9, 9, algorithm);
+            assertEquals(algorithm.toString(), Collections.singletonList(g.graph().ids[9]),
+                    path);
+        }
+    }
+
+    @Test
+    public void testUnreachableTarget() {
+        int island = SIDE * SIDE;
+        for (Router.Algorithm algorithm : SEARCHES) {
+            assertTrue(route(0, island, algorithm).isEmpty());
+            assertTrue(route(island + 1, SIDE, algorithm).isEmpty());
+        }
+        /* Closing both roads of the corner leaves it in the grid's component, so the searches
+         * themselves have to run out of vertices. */
+        CompactGraph graph = g.graph();
+        List<Long> from = new ArrayList<>();
+        List<Long> to = new ArrayList<>();
+        for (int e = graph.offsets[0]; e < graph.offsets[1]; e++) {
+            from.add(graph.ids[0]);
+            to.add(graph.ids[graph.targets[e]]);
+        }
+        g.overrideSegments(from.stream().mapToLong(Long::longValue).toArray(),
+                to.stream().mapToLong(Long::longValue).toArray(), Double.POSITIVE_INFINITY);
+        for (Router.Algorithm algorithm : SEARCHES) {
+            assertTrue(algorithm.toString(), route(0, SIDE * SIDE - 1, algorithm).isEmpty());
+            assertTrue(algorithm.toString(), route(SIDE * SIDE - 1, 0, algorithm).isEmpty());
+        }
+    }
+
+    @Test
+    public void testTiesOnExactGrid() {
+        g = new GraphDB(grid(0, 0, 52), new HashMap<>(), Collections.emptyList());
+        CompactGraph graph = g.graph();
+        int corner = SIDE * SIDE - 1;
+        double[] expected = dijkstra(graph, 0);
+        for (Router.Algorithm algorithm : SEARCHES) {
+            LinkedList<Long> path = route(0, corner, algorithm);
+            assertEquals(2 * SIDE - 1, path.size());
+            assertEquals(expected[corner], length(graph, path), EPSILON);
+            LinkedList<Long> back = route(corner, 0, algorithm);
+            assertEquals(expected[corner], length(graph, back), EPSILON);
+        }
+    }
+}
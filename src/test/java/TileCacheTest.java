@@ -0,0 +1,93 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks hits, byte-budget LRU eviction and invalidation of the tile cache on four small
+ * RGB images written to a temporary directory, which decode to three bytes a pixel.
+ */
+public class TileCacheTest {
+    private static final int TILE_BYTES = 16 * 16 * 3;
+    private String[] paths;
+
+    @Before
+    public void setUp() throws IOException {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        paths = new String[4];
+        for (int i = 0; i < paths.length; i++) {
+            BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, i);
+            File file = new File(dir, i + ".png");
+            file.deleteOnExit();
+            ImageIO.write(image, "png", file);
+            paths[i] = file.getPath();
+        }
+    }
+
+    @Test
+    public void testHitReturnsCachedImage() throws IOException {
+        TileCache cache = new TileCache(10 * TILE_BYTES);
+        BufferedImage first = cache.get(paths[0]);
+        assertEquals(TILE_BYTES, TileCache.sizeOf(first));
+        assertSame(first, cache.get(paths[0]));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(TILE_BYTES, cache.bytes());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedOverBudget() throws IOException {
+        TileCache cache = new TileCache(3 * TILE_BYTES);
+        cache.get(paths[0]);
+        cache.get(paths[1]);
+        cache.get(paths[2]);
+        cache.get(paths[0]);
+        cache.get(paths[3]);
+        assertEquals(3, cache.size());
+        assertEquals(3 * TILE_BYTES, cache.bytes());
+        assertEquals(1, cache.evictions());
+        long misses = cache.misses();
+        cache.get(paths[0]);
+        assertEquals("recently used tile was evicted", misses, cache.misses());
+        cache.get(paths[1]);
+        assertEquals("least recently used tile was kept", misses + 1, cache.misses());
+    }
+
+    @Test
+    public void testZeroBudgetCachesNothing() throws IOException {
+        TileCache cache = new TileCache(0);
+        assertNotNull(cache.get(paths[0]));
+        cache.get(paths[0]);
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    public void testInvalidateChangedDropsRewrittenTiles() throws IOException {
+        TileCache cache = new TileCache(10 * TILE_BYTES);
+        cache.get(paths[0]);
+        cache.get(paths[1]);
+        File changed = new File(paths[1]);
+        assertTrue(changed.setLastModified(changed.lastModified() + 10000));
+        cache.invalidateChanged();
+        assertEquals(1, cache.size());
+        assertEquals(TILE_BYTES, cache.bytes());
+        long misses = cache.misses();
+        cache.get(paths[0]);
+        cache.get(paths[1]);
+        assertEquals(misses + 1, cache.misses());
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingTileThrows() throws IOException {
+        new TileCache(TILE_BYTES).get(paths[0] + ".missing");
+    }
+}
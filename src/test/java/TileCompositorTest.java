@@ -0,0 +1,89 @@
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that compositing gives the same pixels as drawing each tile with Graphics, for the
+ * three kinds of tile it copies differently: 8-bit indexed, packed 2-bit indexed and RGB.
+ */
+public class TileCompositorTest {
+    private static final int SIZE = 32;
+
+    private static String write(File dir, String name, BufferedImage image) throws IOException {
+        File file = new File(dir, name + ".png");
+        file.deleteOnExit();
+        ImageIO.write(image, "png", file);
+        return file.getPath();
+    }
+
+    @Test
+    public void testMatchesDrawImage() throws IOException {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        Random random = new Random(23);
+        byte[] r = {0, (byte) 200, 40, (byte) 255};
+        byte[] g = {0, 100, (byte) 180, (byte) 255};
+        byte[] b = {0, 50, 90, (byte) 255};
+        BufferedImage packed = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_BYTE_BINARY,
+                new IndexColorModel(2, 4, r, g, b));
+        BufferedImage indexed = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_BYTE_INDEXED);
+        BufferedImage rgb = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                packed.setRGB(x, y, packed.getColorModel().getRGB(random.nextInt(4)));
+                indexed.setRGB(x, y, random.nextInt(1 << 24));
+                rgb.setRGB(x, y, random.nextInt(1 << 24));
+            }
+        }
+        String[][] grid = {
+            {write(dir, "packed", packed), write(dir, "indexed", indexed)},
+            {write(dir, "rgb", rgb), write(dir, "packed", packed)},
+            {write(dir, "indexed", indexed), write(dir, "rgb", rgb)}};
+        TileCache cache = new TileCache(1 << 20);
+        BufferedImage actual = new TileCompositor(cache, SIZE).composite(grid);
+
+        BufferedImage expected = new BufferedImage(2 * SIZE, 3 * SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics graphics = expected.getGraphics();
+        for (int row = 0; row < grid.length; row++) {
+            for (int col = 0; col < grid[row].length; col++) {
+                graphics.drawImage(ImageIO.read(new File(grid[row][col])), col * SIZE,
+                        row * SIZE, null);
+            }
+        }
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals("Pixel " + x + "," + y + " differs.", expected.getRGB(x, y),
+                        actual.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testMissingTileIsLeftBlack() throws IOException {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        BufferedImage white = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                white.setRGB(x, y, 0xFFFFFF);
+            }
+        }
+        String[][] grid = {{write(dir, "white", white), dir.getPath() + "/missing.png"}};
+        BufferedImage actual = new TileCompositor(new TileCache(1 << 20), SIZE)
+                .composite(grid);
+        assertEquals(0xFFFFFFFF, actual.getRGB(0, 0));
+        assertEquals(0xFF000000, actual.getRGB(SIZE, 0));
+    }
+}